@@ -0,0 +1,103 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Throughput of the Deployer's deploy, undeploy and audit handlers with a given number of deployments
+ * already tracked, against a StubPlatform whose module deploys complete instantly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DeployerBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  public int trackedDeployments;
+
+  private StubPlatform platform;
+  private JsonObject churn;
+  private JsonObject duplicate;
+  private JsonObject audit;
+
+  @Setup
+  public void setUp() {
+    platform = new StubPlatform(new JsonObject().putString("address", "bench"));
+    platform.startDeployer();
+
+    for (int i = 0; i < trackedDeployments; i++) {
+      platform.send("bench.deploy", spec("tracked-" + i));
+    }
+
+    churn = spec("churn");
+    duplicate = spec("tracked-0");
+    audit = new JsonObject().putString("action", "audit");
+  }
+
+  // a fresh deploy and its undeploy, which leaves the number of tracked deployments as it was
+  @Benchmark
+  public JsonObject deployThenUndeploy() {
+    platform.send("bench.deploy", churn);
+    return platform.send("bench.undeploy", churn);
+  }
+
+  // the "already-deployed" rejection, no module is started
+  @Benchmark
+  public JsonObject deployAlreadyDeployed() {
+    return platform.send("bench.deploy", duplicate);
+  }
+
+  // building the audit report of every tracked deployment
+  @Benchmark
+  public JsonObject audit() {
+    return platform.send("bench.audit", audit);
+  }
+
+  // building the audit report and encoding it, as it would be to cross the cluster
+  @Benchmark
+  public String auditEncoded() {
+    return platform.send("bench.audit", audit).encode();
+  }
+
+  private static JsonObject spec(String moduleName) {
+    return new JsonObject()
+                .putString("moduleOwner", "com.deblox.bench")
+                .putString("moduleName", moduleName)
+                .putString("moduleVersion", "1.0.0-final")
+                .putObject("moduleConfig", new JsonObject().putString("someconfig", "someval"));
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.json.JsonObject;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Cost of building, encoding and parsing a deploy success report, which carries the module's config, and of
+ * hashing that config, for configs of a given number of fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReportBenchmark {
+
+  @Param({"1", "20", "200"})
+  public int configFields;
+
+  private JsonObject config;
+  private JsonObject report;
+  private String encoded;
+
+  @Setup
+  public void setUp() {
+    config = new JsonObject();
+    for (int i = 0; i < configFields; i++) {
+      config.putString("setting-" + i, "value of setting " + i);
+    }
+    report = buildReport();
+    encoded = report.encode();
+  }
+
+  @Benchmark
+  public JsonObject buildReport() {
+    return new JsonObject()
+                .putString("module", "mod-auth-mgr")
+                .putString("action", "deploy")
+                .putString("status", "ok")
+                .putBoolean("xgrade", false)
+                .putObject("detail", new JsonObject()
+                    .putString("deploymentID", "deployment-7a578e95-3a4d-4095-b52e-6c2c9eb8319c")
+                    .putNumber("instances", 1)
+                    .putObject("config", config));
+  }
+
+  @Benchmark
+  public String encodeReport() {
+    return report.encode();
+  }
+
+  @Benchmark
+  public JsonObject parseReport() {
+    return new JsonObject(encoded);
+  }
+
+  @Benchmark
+  public String configHash() {
+    return ConfigHash.of(config);
+  }
+
+}
@@ -0,0 +1,204 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.platform.Container;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+
+/*
+ * A stand-in for the vert.x platform, just enough of it to start a Deployer and drive its handlers directly.
+ *
+ * Module deploys and undeploys succeed straight away on the calling thread, timers never fire and anything
+ * published or sent goes nowhere, so a benchmark measures the Deployer's own handling and nothing else. Handler
+ * registrations complete at once, and whatever is run on the context runs right there, on the calling thread.
+ * Unless the config says otherwise the module cache is an empty directory of its own, not the platform's mods.
+ */
+final class StubPlatform {
+
+  private final JsonObject config;
+  private final Map<String, Handler<Message<JsonObject>>> handlers = new HashMap<>();
+  private final EventBus eventBus;
+  private final Context context;
+  private final Vertx vertx;
+  private final Container container;
+  private long deploymentIDs = 0;
+  private long timerIDs = 0;
+  private Object reply;
+
+  StubPlatform(JsonObject config) {
+    this.config = config;
+
+    // whatever happens to be cached in the platform's mods would send checkouts off to the cache's pool
+    if (config.getString("moduleCacheDir") == null) {
+      try {
+        config.putString("moduleCacheDir", Files.createTempDirectory("deployer-bench").toString());
+      } catch (IOException e) {
+        throw new IllegalStateException("unable to create a module cache directory", e);
+      }
+    }
+
+    // the Deployer logs every operation at info, which would otherwise be most of what gets measured
+    java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+
+    this.eventBus = stub(EventBus.class, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("registerHandler") || method.getName().equals("registerLocalHandler")) {
+          handlers.put((String) args[0], (Handler<Message<JsonObject>>) args[1]);
+        } else if (method.getName().equals("unregisterHandler") && handlers.get(args[0]) == args[1]) {
+          handlers.remove(args[0]);
+        }
+        if (method.getName().endsWith("registerHandler") && args.length == 3) {
+          ((Handler<AsyncResult<Void>>) args[2]).handle(StubPlatform.<Void>succeeded(null));
+        }
+        return method.getReturnType() == EventBus.class ? proxy : defaultValue(method.getReturnType());
+      }
+    });
+
+    this.context = stub(Context.class, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("runOnContext")) {
+          ((Handler<Void>) args[0]).handle(null);
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+
+    this.vertx = stub(Vertx.class, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("eventBus")) {
+          return eventBus;
+        }
+        if (method.getName().equals("currentContext")) {
+          return context;
+        }
+        if (method.getName().equals("runOnContext")) {
+          ((Handler<Void>) args[0]).handle(null);
+          return null;
+        }
+        if (method.getName().equals("setTimer") || method.getName().equals("setPeriodic")) {
+          return ++timerIDs;
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+
+    this.container = stub(Container.class, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("config")) {
+          return StubPlatform.this.config;
+        }
+        if (method.getName().equals("logger")) {
+          return LoggerFactory.getLogger(StubPlatform.class);
+        }
+        if (method.getName().equals("deployModule") && args[args.length - 1] instanceof Handler) {
+          ((Handler<AsyncResult<String>>) args[args.length - 1]).handle(succeeded("deployment-" + (++deploymentIDs)));
+        } else if (method.getName().equals("undeployModule") && args.length == 2) {
+          ((Handler<AsyncResult<Void>>) args[1]).handle(StubPlatform.<Void>succeeded(null));
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  Deployer startDeployer() {
+    Deployer deployer = new Deployer();
+    deployer.setVertx(vertx);
+    deployer.setContainer(container);
+    deployer.start();
+    return deployer;
+  }
+
+  // Delivers body to the handler registered on address and returns its reply, null if it didn't reply
+  JsonObject send(String address, final JsonObject body) {
+    reply = null;
+    @SuppressWarnings("unchecked")
+    Message<JsonObject> message = stub(Message.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("body")) {
+          return body;
+        }
+        if (method.getName().equals("reply") && args != null && args.length > 0) {
+          reply = args[0];
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+    handlers.get(address).handle(message);
+    return (JsonObject) reply;
+  }
+
+  private static <T> AsyncResult<T> succeeded(final T result) {
+    return new AsyncResult<T>() {
+      public T result() {
+        return result;
+      }
+
+      public Throwable cause() {
+        return null;
+      }
+
+      public boolean succeeded() {
+        return true;
+      }
+
+      public boolean failed() {
+        return false;
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(StubPlatform.class.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+/*
+ * Bounds how many requests a node works on at once. Up to `maxInFlight` operations run, further ones wait in
+ * a queue of at most `maxQueued`, served by priority and in arrival order within a priority. Once the queue is
+ * full requests are turned away, with a hint of how long to wait before retrying, worked out from the queue
+ * depth and how long operations have been taking.
+ *
+ * The counts are plain fields, so submit() and the done handlers it hands out must all be called on the
+ * Deployer's event loop, which is also where a freed slot runs the next request.
+ */
+final class AdmissionController {
+
+  // priorities, lower is served first
+  static final int AUDIT = 0;
+  static final int UNDEPLOY = 1;
+  static final int DEPLOY = 2;
+
+  private static final String[] NAMES = {"audit", "undeploy", "deploy"};
+
+  interface Request {
+    // Work on the request, calling done exactly once when finished, which frees its slot for the next one
+    void run(Handler<Void> done);
+  }
+
+  private static final class Waiting {
+    final Request operation;
+    final long queuedAt;
+
+    Waiting(Request operation, long queuedAt) {
+      this.operation = operation;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  @SuppressWarnings("unchecked")
+  private final Deque<Waiting>[] queues = new Deque[NAMES.length];
+  private final LatencyHistogram waitTime = new LatencyHistogram();
+
+  private int inFlight = 0;
+  private int queued = 0;
+  private long rejected = 0;
+  private double serviceTime = 100; // moving average of operation durations in ms, a guess until we know
+
+  AdmissionController(int maxInFlight, int maxQueued) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.maxQueued = Math.max(0, maxQueued);
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<>();
+    }
+  }
+
+  /*
+   * Runs the operation now if there is room, queues it if not, or returns false if the queue is full too, in
+   * which case the caller turns the request away, see retryAfter().
+   */
+  boolean submit(int priority, Request operation) {
+    if (inFlight < maxInFlight) {
+      waitTime.record(0);
+      run(operation);
+      return true;
+    }
+    if (queued >= maxQueued) {
+      rejected++;
+      return false;
+    }
+    queues[priority].add(new Waiting(operation, System.currentTimeMillis()));
+    queued++;
+    return true;
+  }
+
+  // Milliseconds a turned away request should wait before trying again, roughly how long the queue takes to drain
+  long retryAfter() {
+    long rounds = (queued + maxInFlight) / maxInFlight;
+    return Math.max(100, (long) (rounds * serviceTime));
+  }
+
+  JsonObject toJson() {
+    JsonObject depth = new JsonObject();
+    for (int i = 0; i < queues.length; i++) {
+      depth.putNumber(NAMES[i], queues[i].size());
+    }
+    return new JsonObject()
+                .putNumber("inFlight", inFlight)
+                .putNumber("maxInFlight", maxInFlight)
+                .putNumber("queued", queued)
+                .putNumber("maxQueued", maxQueued)
+                .putObject("queues", depth)
+                .putNumber("rejected", rejected)
+                .putNumber("serviceTime", Math.round(serviceTime))
+                .putObject("waitTime", waitTime.toJson());
+  }
+
+  // Runs the operation, giving its slot back should it throw, since it then can't be relied on to call done
+  private void run(Request operation) {
+    inFlight++;
+    final long started = System.currentTimeMillis();
+    Handler<Void> done = new Handler<Void>() {
+      private boolean released = false;
+
+      public void handle(Void ignored) {
+        if (released) {
+          return;
+        }
+        released = true;
+        inFlight--;
+        serviceTime = serviceTime * 0.8 + (System.currentTimeMillis() - started) * 0.2;
+        runNext();
+      }
+    };
+
+    try {
+      operation.run(done);
+    } catch (RuntimeException e) {
+      done.handle(null);
+      throw e;
+    }
+  }
+
+  private void runNext() {
+    for (Deque<Waiting> queue : queues) {
+      Waiting next = queue.poll();
+      if (next != null) {
+        queued--;
+        waitTime.record(System.currentTimeMillis() - next.queuedAt);
+        run(next.operation);
+        return;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonObject;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/*
+ * Fingerprints module configs. Two configs with the same content hash the same regardless of the order their
+ * fields were put in, so the hash can stand in for the config when comparing or reporting deployments.
+ */
+final class ConfigHash {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private ConfigHash() {
+  }
+
+  // Hex encoded SHA-1 of the config's canonical encoding, a null config hashes like an empty one
+  static String of(JsonObject config) {
+    return sha1(canonical(config == null ? new JsonObject() : config));
+  }
+
+  // The config encoded as JSON with the fields of every object in sorted order
+  static String canonical(JsonObject config) {
+    StringBuilder out = new StringBuilder();
+    write(out, config.toMap());
+    return out.toString();
+  }
+
+  static String sha1(String text) {
+    try {
+      return hex(MessageDigest.getInstance("SHA-1").digest(text.getBytes(UTF8)));
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM is required to provide SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String hex(byte[] digest) {
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void write(StringBuilder out, Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<>((Map<String, Object>) value);
+      out.append('{');
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        writeString(out, entry.getKey());
+        out.append(':');
+        write(out, entry.getValue());
+      }
+      out.append('}');
+    } else if (value instanceof List) {
+      out.append('[');
+      boolean first = true;
+      for (Object element : (List<Object>) value) {
+        if (!first) {
+          out.append(',');
+        }
+        first = false;
+        write(out, element);
+      }
+      out.append(']');
+    } else if (value instanceof String) {
+      writeString(out, (String) value);
+    } else if (value instanceof byte[]) {
+      writeString(out, sha1(new String((byte[]) value, UTF8)));
+    } else {
+      // numbers, booleans and null
+      out.append(String.valueOf(value));
+    }
+  }
+
+  private static void writeString(StringBuilder out, String text) {
+    out.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+}
@@ -0,0 +1,44 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/*
+ * Thread factories for the pools of the Deployer's helpers. Their threads are daemons, so a helper which
+ * wasn't closed never keeps the JVM from exiting, and named after the helper, so they can be told apart in a
+ * thread dump.
+ */
+final class DaemonThreads {
+
+  private DaemonThreads() {
+  }
+
+  static ThreadFactory named(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+}
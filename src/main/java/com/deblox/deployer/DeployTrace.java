@@ -0,0 +1,116 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * The timed phases, or spans, of a single deploy, from the request arriving to the reply, all tagged with the
+ * request's correlation id. Spans may nest, resolve for instance covers download and unpack, and may be
+ * recorded from the module cache's threads as well as the event loop, so recording is synchronized.
+ */
+final class DeployTrace {
+
+  // wall clock microseconds at System.nanoTime() 0, trace viewers want timestamps they can line up across nodes
+  private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+  private static final class Span {
+    final String phase;
+    final long begun; // nanoTime
+    final long nanos;
+    final long thread;
+
+    Span(String phase, long begun, long nanos, long thread) {
+      this.phase = phase;
+      this.begun = begun;
+      this.nanos = nanos;
+      this.thread = thread;
+    }
+  }
+
+  private final String correlationId;
+  private final String module;
+  private final long begun = System.nanoTime();
+  private final List<Span> spans = new ArrayList<>();
+
+  DeployTrace(String correlationId, String module) {
+    this.correlationId = correlationId;
+    this.module = module;
+  }
+
+  String correlationId() {
+    return correlationId;
+  }
+
+  // The start of a span, to be passed to end()
+  static long begin() {
+    return System.nanoTime();
+  }
+
+  // Records the span of `phase` from `begun`, as returned by begin(), to now
+  synchronized void end(String phase, long begun) {
+    spans.add(new Span(phase, begun, System.nanoTime() - begun, Thread.currentThread().getId()));
+  }
+
+  /*
+   * Milliseconds in total and per phase, a phase which ran more than once is summed. Nested phases are also
+   * counted in the phase they are nested in.
+   */
+  synchronized JsonObject summary() {
+    JsonObject phases = new JsonObject();
+    for (Span span : spans) {
+      Number sofar = phases.getNumber(span.phase);
+      phases.putNumber(span.phase, (sofar == null ? 0 : sofar.doubleValue()) + span.nanos / 1000000.0);
+    }
+    for (String phase : phases.getFieldNames()) {
+      phases.putNumber(phase, Math.round(phases.getNumber(phase).doubleValue() * 10) / 10.0);
+    }
+    return new JsonObject()
+                .putString("correlationId", correlationId)
+                .putNumber("total", Math.round((System.nanoTime() - begun) / 100000.0) / 10.0)
+                .putObject("phases", phases);
+  }
+
+  /*
+   * The spans as complete events of the Trace Event Format, which chrome://tracing and Perfetto load. Each
+   * thread a span was recorded on gets its own track within the node's process `pid`.
+   */
+  synchronized JsonArray events(int pid) {
+    JsonArray events = new JsonArray();
+    for (Span span : spans) {
+      events.addObject(new JsonObject()
+                           .putString("name", span.phase)
+                           .putString("cat", "deploy")
+                           .putString("ph", "X")
+                           .putNumber("ts", EPOCH_MICROS + span.begun / 1000)
+                           .putNumber("dur", span.nanos / 1000)
+                           .putNumber("pid", pid)
+                           .putNumber("tid", span.thread)
+                           .putObject("args", new JsonObject()
+                                                  .putString("correlationId", correlationId)
+                                                  .putString("module", module)));
+    }
+    return events;
+  }
+
+}
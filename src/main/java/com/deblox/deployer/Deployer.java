@@ -22,13 +22,24 @@ import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.platform.PlatformManagerException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.UUID;
 
 
 /*
@@ -39,15 +50,138 @@ public class Deployer extends BusModBase {
   private Handler<Message<JsonObject>> deployHandler;
   private Handler<Message<JsonObject>> undeployHandler;
   private Handler<Message<JsonObject>> auditHandler;
+  private Handler<Message<JsonObject>> auditScatterHandler;
+  private Handler<Message<JsonObject>> clusterAuditHandler;
+  private Handler<Message<JsonObject>> batchDeployHandler;
+  private Handler<Message<JsonObject>> placeHandler;
+  private Handler<Message<JsonObject>> loadHandler;
+  private Handler<Message<JsonObject>> metricsHandler;
+  private Handler<Message<JsonObject>> prefetchHandler;
+  private Handler<Message<JsonObject>> desiredHandler;
+  private Handler<Message<JsonObject>> rolloutHandler;
+  private Handler<Message<JsonObject>> inventoryHandler;
+  private Handler<Message<JsonObject>> stackDeployHandler;
+  private Handler<Message<JsonObject>> stackUndeployHandler;
+  private Handler<Message<JsonObject>> replicasHandler;
+  private Handler<Message<JsonObject>> replicaSyncHandler;
+  private Handler<Message<JsonObject>> rollbackHandler;
 
   // We hold a map of current known deployments, we can only know of deployments made via ourself. 
   protected final Map<String, DeploymentInfo> deployments = new HashMap<>();
 
   private String address; // main address space to subscribe to, all other queues based on this.
   private String deployAddress;
+  private String batchDeployAddress; // array of deploy specs in, one aggregated reply out
   private String undeployAddress;
   private String reportAddress;
   private String auditAddress; // where we listen for interrogations
+  private String clusterAuditAddress; // interrogate every node in the cluster at once
+  private String placeAddress; // deploy to the least loaded node in the cluster
+  private String loadAddress; // where every node publishes its load vector
+  private String metricsAddress; // latency histograms and counters of our operations
+  private String prefetchAddress; // fetch modules into the local cache without starting them
+  private String desiredAddress; // the full set of modules we should be running, see reconcile()
+  private String rolloutAddress; // upgrade a module across the cluster in waves
+  private String rollbackAddress; // go back to the version a module's last xgrade replaced
+  private String inventoryAddress; // where every node announces changes to its modules
+  private String replicasAddress; // run a module on a given number of nodes, see ReplicaSets
+
+  private String nodeId; // identifies this Deployer in the cluster, node specific addresses are derived from it
+
+  private int batchConcurrency; // max modules of a single batch being deployed at the same time
+  private String xgradeStrategy; // default for deploy requests which don't name their own
+  private long loadInterval; // ms between load vector announcements
+  private long forwardTimeout; // ms to wait for the reply of a request forwarded to another node
+  private long clusterAuditTimeout; // ms to wait for nodes to answer a cluster audit
+  private long deployTimeout; // default ms a deploy may take before the requester is told it failed, 0 waits forever
+  private long undeployTimeout; // same for undeploys
+  private int resourceThreadLimit; // threads a deployment may have before it counts as over its limits, 0 for no limit
+  private double resourceCpuLimit; // same for its share of a processor
+  private int resourceStrikes; // samples in a row over a limit before a deployment is reported, and maybe evicted
+  private boolean resourceEvict; // whether deployments reported over their limits are undeployed
+  private int noisyModules = 0; // deployments over a limit as of the last sample, announced with our load
+
+  private PlacementScheduler placement;
+  private DeploymentJournal journal; // null unless journalDir is configured
+  private TraceWriter traces; // null unless traceFile is configured
+  private ResourceSampler resources; // null unless resourceInterval is configured
+  private ReportPublisher reports; // everything for the reports address goes through here
+  private ModuleCache moduleCache;
+  private RequestCache requests; // outcomes of recent requests by requestId, for retrying clients
+  private InventoryAnnouncer inventory;
+  private AdmissionController admission; // bounds the deploy, undeploy and audit requests we work on at once
+  private final Random random = new Random();
+
+  // The cluster's replica sets, which we keep in case we come to lead, and the passes waiting on a running one
+  private final ReplicaSets replicaSets = new ReplicaSets();
+  private boolean balancing = false;
+  private final List<Handler<JsonObject>> balanceWaiters = new ArrayList<>();
+
+  // The last desired state we were given, null until we get one, whether a reconcile is running and the callers
+  // waiting on the one after it
+  private JsonObject desired;
+  private boolean reconciling = false;
+  private final List<Handler<JsonObject>> reconcileWaiters = new ArrayList<>();
+  private final DeployerMetrics metrics = new DeployerMetrics();
+
+  // Deploy and undeploy operations in flight per owner~name, see KeyedOperationQueue
+  private final KeyedOperationQueue operations = new KeyedOperationQueue();
+
+  // Where a known deployment is in its lifecycle, anything but DEPLOYED means an operation on it is in flight.
+  // XGRADING is a deployment whose replacement is being started alongside it.
+  private enum State {
+    DEPLOYING, DEPLOYED, XGRADING, UNDEPLOYING
+  }
+
+  // Xgrade strategies, stop-start undeploys the running version before deploying the new one while
+  // start-stop deploys the new version first and only undeploys the old one once the new one is up.
+  private static final String XGRADE_STOP_START = "stop-start";
+  private static final String XGRADE_START_STOP = "start-stop";
+
+  // `instances` value asking for one instance per available processor
+  private static final String INSTANCES_AUTO = "auto";
+
+  // Runs onExpiry after `timeout` ms unless finish() is called first, a timeout of 0 never expires
+  private final class Deadline {
+    private final long timerID;
+    private Handler<Void> onExpiry;
+    private boolean expired = false;
+    private boolean finished = false;
+
+    Deadline(long timeout, Handler<Void> onExpiry) {
+      this.onExpiry = onExpiry;
+      if (timeout <= 0) {
+        timerID = -1;
+        return;
+      }
+      timerID = vertx.setTimer(timeout, new Handler<Long>() {
+        public void handle(Long timerID) {
+          if (!finished) {
+            expired = true;
+            Deadline.this.onExpiry.handle(null);
+          }
+        }
+      });
+    }
+
+    // Replaces what runs on expiry, for an operation whose clean up changes as it moves from phase to phase
+    void onExpiry(Handler<Void> onExpiry) {
+      this.onExpiry = onExpiry;
+    }
+
+    boolean expired() {
+      return expired;
+    }
+
+    // Stops the clock, returns true if it is too late since onExpiry has already run
+    boolean finish() {
+      finished = true;
+      if (timerID != -1 && !expired) {
+        vertx.cancelTimer(timerID);
+      }
+      return expired;
+    }
+  }
 
   private static final class DeploymentInfo {
     final String deploymentID;
@@ -55,13 +189,23 @@ public class Deployer extends BusModBase {
     final String moduleOwner;
     final String moduleVersion;
     final JsonObject moduleConfig;
-
-    private DeploymentInfo(String deploymentID, String moduleName, String moduleOwner, String moduleVersion, JsonObject moduleConfig ) {
+    final String configHash;
+    final int instances; // all instances share the one deploymentID
+    State state;
+    JsonObject previous; // the deploy request restoring what this deployment's xgrade replaced, null if nothing
+    JsonObject resources; // as of the last resource sample, null until sampled
+    int strikes; // resource samples in a row over a limit
+    JsonObject journalled; // of a DEPLOYING placeholder, what the journal holds for the module until it is up
+
+    private DeploymentInfo(String deploymentID, String moduleName, String moduleOwner, String moduleVersion, JsonObject moduleConfig, int instances, State state ) {
       this.deploymentID = deploymentID;
       this.moduleName = moduleName;
       this.moduleOwner = moduleOwner;
       this.moduleVersion = moduleVersion;
       this.moduleConfig = moduleConfig;
+      this.configHash = ConfigHash.of(moduleConfig);
+      this.instances = instances;
+      this.state = state;
     }
 
     // returns a fully qualified module name ( for reporting  only at this stage )
@@ -69,6 +213,16 @@ public class Deployer extends BusModBase {
       return this.moduleOwner + "~" + this.moduleName + "~" + this.moduleVersion;
     }
 
+    // the deploy request which would bring this deployment back
+    JsonObject toSpec() {
+      return new JsonObject()
+                  .putString("moduleOwner", moduleOwner)
+                  .putString("moduleName", moduleName)
+                  .putString("moduleVersion", moduleVersion)
+                  .putObject("moduleConfig", moduleConfig)
+                  .putNumber("instances", instances);
+    }
+
     }
 
   public void start() {
@@ -81,6 +235,98 @@ public class Deployer extends BusModBase {
     this.undeployAddress = address + ".undeploy";
     this.reportAddress = address + ".reports";
     this.auditAddress = address + ".audit";
+    this.batchDeployAddress = deployAddress + ".batch";
+    this.placeAddress = deployAddress + ".place";
+    this.loadAddress = address + ".load";
+    this.clusterAuditAddress = auditAddress + ".cluster";
+    this.metricsAddress = address + ".metrics";
+    this.prefetchAddress = address + ".prefetch";
+    this.desiredAddress = address + ".desired";
+    this.rolloutAddress = address + ".rollout";
+    this.rollbackAddress = address + ".rollback";
+    this.inventoryAddress = address + ".inventory";
+    this.replicasAddress = address + ".replicas";
+
+    this.nodeId = UUID.randomUUID().toString();
+
+    this.batchConcurrency = Math.max(1, getOptionalIntConfig("batchConcurrency", Runtime.getRuntime().availableProcessors()));
+    this.xgradeStrategy = getOptionalStringConfig("xgradeStrategy", XGRADE_STOP_START);
+    if (!XGRADE_STOP_START.equals(xgradeStrategy) && !XGRADE_START_STOP.equals(xgradeStrategy)) {
+      logger.error("unknown xgradeStrategy " + xgradeStrategy + ", using " + XGRADE_STOP_START);
+      xgradeStrategy = XGRADE_STOP_START;
+    }
+    this.loadInterval = Math.max(100, getOptionalLongConfig("loadInterval", 5000));
+    this.forwardTimeout = getOptionalLongConfig("forwardTimeout", 300000);
+    this.clusterAuditTimeout = getOptionalLongConfig("clusterAuditTimeout", 5000);
+    this.deployTimeout = Math.max(0, getOptionalLongConfig("deployTimeout", 300000));
+    this.undeployTimeout = Math.max(0, getOptionalLongConfig("undeployTimeout", 60000));
+
+    this.reports = new ReportPublisher(vertx, reportAddress, nodeId,
+                                       getOptionalStringConfig("reportMode", ReportPublisher.MODE_EVENT),
+                                       getOptionalLongConfig("reportBatchWindow", 250),
+                                       getOptionalIntConfig("reportBatchSize", 500),
+                                       getOptionalStringConfig("reportConfigs", ReportPublisher.CONFIGS_HASH));
+
+    String moduleCacheDir = getOptionalStringConfig("moduleCacheDir", null);
+    String moduleResolution = getOptionalStringConfig("moduleResolution", ModuleCache.RESOLUTION_PLATFORM);
+    if (!ModuleCache.RESOLUTION_PLATFORM.equals(moduleResolution) && !ModuleCache.RESOLUTION_SEQUENTIAL.equals(moduleResolution)
+        && !ModuleCache.RESOLUTION_RACE.equals(moduleResolution)) {
+      logger.error("unknown moduleResolution " + moduleResolution + ", using " + ModuleCache.RESOLUTION_PLATFORM);
+      moduleResolution = ModuleCache.RESOLUTION_PLATFORM;
+    }
+    // repositories in the config replace those of repos.txt, which is mostly useful for tests
+    List<String> repositories = ModuleCache.readRepos();
+    JsonArray configuredRepositories = getOptionalArrayConfig("moduleRepositories", null);
+    if (configuredRepositories != null) {
+      repositories = new ArrayList<>();
+      for (Object repository : configuredRepositories) {
+        repositories.add(String.valueOf(repository));
+      }
+    }
+    this.moduleCache = new ModuleCache(vertx,
+                                       moduleCacheDir == null ? ModuleCache.platformModsDir() : new File(moduleCacheDir),
+                                       getOptionalLongConfig("moduleCacheSize", 1024) * 1024 * 1024,
+                                       getOptionalIntConfig("moduleCacheThreads", 4),
+                                       repositories,
+                                       moduleResolution,
+                                       getOptionalIntConfig("repositoryFailureThreshold", 3),
+                                       getOptionalLongConfig("repositoryOpenFor", 30000),
+                                       getOptionalLongConfig("repositorySlowThreshold", 10000),
+                                       new ModuleCache.InUse() {
+                                         public Set<String> modules() {
+                                           return deployedModules();
+                                         }
+                                       },
+                                       logger);
+
+    // Periodically sample what each deployment uses of the node, see sampleResources(), off unless configured
+    long resourceInterval = getOptionalLongConfig("resourceInterval", 0);
+    if (resourceInterval > 0) {
+      this.resourceThreadLimit = getOptionalIntConfig("resourceThreadLimit", 0);
+      this.resourceCpuLimit = getOptionalDoubleConfig("resourceCpuLimit", 0);
+      this.resourceStrikes = Math.max(1, getOptionalIntConfig("resourceStrikes", 3));
+      this.resourceEvict = getOptionalBooleanConfig("resourceEvict", false);
+      this.resources = new ResourceSampler(vertx, moduleCacheDir == null ? ModuleCache.platformModsDir() : new File(moduleCacheDir),
+                                           ModuleCache.platformModsDir());
+      vertx.setPeriodic(resourceInterval, new Handler<Long>() {
+        public void handle(Long timerID) {
+          sampleResources();
+        }
+      });
+    }
+
+    this.admission = new AdmissionController(getOptionalIntConfig("admissionLimit", Runtime.getRuntime().availableProcessors() * 2),
+                                             getOptionalIntConfig("admissionQueueSize", 1000));
+    this.requests = new RequestCache(getOptionalIntConfig("requestCacheSize", 10000),
+                                     getOptionalLongConfig("requestCacheTtl", 600000));
+
+    String traceFile = getOptionalStringConfig("traceFile", null);
+    if (traceFile != null) {
+      traces = new TraceWriter(new File(traceFile), TraceWriter.processId(), logger);
+    }
+
+    // a node which has missed three announcements in a row is considered gone
+    this.placement = new PlacementScheduler(loadInterval * 3);
 
     // Deploy Handler
     deployHandler = new Handler<Message<JsonObject>>() {
@@ -89,6 +335,30 @@ public class Deployer extends BusModBase {
       }
     };
     eb.registerHandler(deployAddress, deployHandler);
+    eb.registerHandler(nodeAddress(nodeId) + ".deploy", deployHandler);
+
+    // Batch Deploy Handler
+    batchDeployHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doDeployBatch(message);
+      }
+    };
+    eb.registerHandler(batchDeployAddress, batchDeployHandler);
+
+    // Stack Handlers, modules with dependencies between them
+    stackDeployHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doStack(message, false);
+      }
+    };
+    eb.registerHandler(deployAddress + ".stack", stackDeployHandler);
+
+    stackUndeployHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doStack(message, true);
+      }
+    };
+    eb.registerHandler(undeployAddress + ".stack", stackUndeployHandler);
 
     // Undeploy Handler
     undeployHandler = new Handler<Message<JsonObject>>() {
@@ -97,6 +367,7 @@ public class Deployer extends BusModBase {
       }
     };
     eb.registerHandler(undeployAddress, undeployHandler);
+    eb.registerHandler(nodeAddress(nodeId) + ".undeploy", undeployHandler);
 
     // Audit Handler
     auditHandler = new Handler<Message<JsonObject>>() {
@@ -106,80 +377,712 @@ public class Deployer extends BusModBase {
     };
     eb.registerHandler(auditAddress, auditHandler);
 
+    // Cluster Audit Handlers, the scatter address is where every node receives the gathering node's request
+    auditScatterHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doAuditScatter(message);
+      }
+    };
+    eb.registerHandler(auditAddress + ".scatter", auditScatterHandler);
+
+    clusterAuditHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doClusterAudit(message);
+      }
+    };
+    eb.registerHandler(clusterAuditAddress, clusterAuditHandler);
+
+    // Placement Handler
+    placeHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doPlace(message);
+      }
+    };
+    eb.registerHandler(placeAddress, placeHandler);
+
+    // Load Handler, keeps track of every node's load for placements
+    loadHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        placement.update(message.body(), System.currentTimeMillis());
+      }
+    };
+    eb.registerHandler(loadAddress, loadHandler);
+
+    // Periodically announce our load to the cluster, and once right away so we are placeable from the start
+    vertx.setPeriodic(loadInterval, new Handler<Long>() {
+      public void handle(Long timerID) {
+        eb.publish(loadAddress, PlacementScheduler.sample(nodeId, deployments.size(), noisyModules));
+      }
+    });
+    eb.publish(loadAddress, PlacementScheduler.sample(nodeId, deployments.size(), noisyModules));
+
+    // Metrics Handler
+    metricsHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doMetrics(message);
+      }
+    };
+    eb.registerHandler(metricsAddress, metricsHandler);
+
+    // Optionally publish our metrics to the reports address, without the per module breakdown
+    long metricsInterval = getOptionalLongConfig("metricsInterval", 0);
+    if (metricsInterval > 0) {
+      vertx.setPeriodic(metricsInterval, new Handler<Long>() {
+        public void handle(Long timerID) {
+          reports.publish(new JsonObject()
+                              .putString("action", "metrics")
+                              .putString("node", nodeId)
+                              .putObject("metrics", metrics.toJson(false)));
+        }
+      });
+    }
+
+    // Prefetch Handler
+    prefetchHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doPrefetch(message);
+      }
+    };
+    eb.registerHandler(prefetchAddress, prefetchHandler);
+
+    // Desired State Handler, for every node at once or for this node alone
+    desiredHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doDesired(message);
+      }
+    };
+    eb.registerHandler(desiredAddress, desiredHandler);
+    eb.registerHandler(nodeAddress(nodeId) + ".desired", desiredHandler);
+
+    // Rollout Handler
+    rolloutHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doRollout(message);
+      }
+    };
+    eb.registerHandler(rolloutAddress, rolloutHandler);
+
+    // Rollback Handler, for every node at once or for this node alone
+    rollbackHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doRollback(message);
+      }
+    };
+    eb.registerHandler(rollbackAddress, rollbackHandler);
+    eb.registerHandler(nodeAddress(nodeId) + ".rollback", rollbackHandler);
+
+    // Replica Set Handlers, every node keeps every set while the leader keeps their counts
+    replicasHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        doReplicas(message);
+      }
+    };
+    eb.registerHandler(replicasAddress, replicasHandler);
+    eb.registerHandler(nodeAddress(nodeId) + ".replicas", replicasHandler);
+
+    replicaSyncHandler = new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        for (Object set : message.body().getArray("sets")) {
+          replicaSets.define((JsonObject) set);
+        }
+      }
+    };
+    eb.registerHandler(replicasAddress + ".sync", replicaSyncHandler);
+
+    // Periodically have the leader count replicas, replacing those lost with a node and removing any surplus
+    long replicaInterval = getOptionalLongConfig("replicaInterval", 10000);
+    if (replicaInterval > 0) {
+      vertx.setPeriodic(replicaInterval, new Handler<Long>() {
+        public void handle(Long timerID) {
+          if (replicaSets.isEmpty() || !nodeId.equals(leader()) || balancing) {
+            return;
+          }
+          // share the sets with nodes which joined since they were defined, any of them may lead next
+          eb.publish(replicasAddress + ".sync", new JsonObject().putArray("sets", replicaSets.toJson()));
+          balanceReplicas(new Handler<JsonObject>() {
+            public void handle(JsonObject result) {
+              if (result.getInteger("actions") > 0 || !"ok".equals(result.getString("status"))) {
+                logger.info("Replica pass, " + result.getString("message"));
+              }
+            }
+          });
+        }
+      });
+    }
+
+    // Periodically announce changes to our modules, and answer anyone who lost track with the full inventory
+    long announceInterval = getOptionalLongConfig("announceInterval", 0);
+    if (announceInterval > 0) {
+      inventory = new InventoryAnnouncer(nodeId, getOptionalIntConfig("announceSnapshotEvery", 10));
+      // spread over the interval, so nodes started together don't announce together forever after
+      double jitter = Math.max(0, Math.min(1, getOptionalDoubleConfig("announceJitter", 0.2)));
+      scheduleAnnouncement(announceInterval, jitter, random.nextDouble() * announceInterval);
+
+      inventoryHandler = new Handler<Message<JsonObject>>() {
+        public void handle(Message<JsonObject> message) {
+          message.reply(inventory.current());
+        }
+      };
+      eb.registerHandler(nodeAddress(nodeId) + ".inventory", inventoryHandler);
+    }
+
+    // Periodically reconcile against the last desired state, repairing whatever drifted or failed
+    long reconcileInterval = getOptionalLongConfig("reconcileInterval", 30000);
+    if (reconcileInterval > 0) {
+      vertx.setPeriodic(reconcileInterval, new Handler<Long>() {
+        public void handle(Long timerID) {
+          if (desired != null && !reconciling) {
+            reconcile(new Handler<JsonObject>() {
+              public void handle(JsonObject result) {
+                if (result.getInteger("actions") > 0) {
+                  logger.info("Reconcile repaired drift, " + result.getString("message"));
+                }
+              }
+            });
+          }
+        }
+      });
+    }
+
+    logger.info("Deployer node " + nodeId + " started on " + address);
+
+    // Bring back whatever we were running before a restart
+    String journalDir = getOptionalStringConfig("journalDir", null);
+    if (journalDir != null) {
+      journal = new DeploymentJournal(new File(journalDir),
+                                      getOptionalLongConfig("journalFlushInterval", 50),
+                                      getOptionalIntConfig("journalCompactThreshold", 1000),
+                                      logger);
+      recover();
+    }
+  }
+
+  public void stop() {
+    reports.flush();
+    moduleCache.close();
+    if (journal != null) {
+      journal.close();
+    }
+    if (traces != null) {
+      traces.close();
+    }
+    if (resources != null) {
+      resources.close();
+    }
+  }
+
+  // BusModBase has no fractional config values
+  private double getOptionalDoubleConfig(String fieldName, double defaultValue) {
+    Number value = config.getNumber(fieldName);
+    return value == null ? defaultValue : value.doubleValue();
+  }
+
+  // The address space of a single Deployer node
+  private String nodeAddress(String nodeId) {
+    return address + ".node." + nodeId;
   }
 
   private void doDeploy(final Message<JsonObject> message) {
 
     //System.out.println("Got Deploy Message: " + message.body());
 
-    // Get mandatory fields from message
-    final String moduleName = getMandatoryString("moduleName", message);
-    if (moduleName == null) {
+    // the trace starts here, so time spent waiting for admission shows up in it
+    final DeployTrace trace = new DeployTrace(correlationId(message.body()), fullName(message.body()));
+    final long arrived = DeployTrace.begin();
+
+    admit(message, AdmissionController.DEPLOY, new AdmissionController.Request() {
+      public void run(final Handler<Void> done) {
+        trace.end("admission", arrived);
+        deploy(message.body(), trace, new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            done.handle(null);
+            message.reply(result);
+          }
+        });
+      }
+    });
+  }
+
+  // Hands the request's operation to the admission controller, replying with a retry hint if we are full
+  private void admit(Message<JsonObject> message, int priority, AdmissionController.Request operation) {
+    if (!admission.submit(priority, operation)) {
+      message.reply(busy());
+    }
+  }
+
+  /*
+   * Deploys, or undeploys, one module of a batch, stack or reconcile as an admitted request of its own, so work
+   * started in bulk counts against admissionLimit just like single requests. A module turned away fails with
+   * the same busy reply a single request would get.
+   */
+  private void admitted(final boolean undeploying, final JsonObject spec, final Handler<JsonObject> resultHandler) {
+    boolean admitted = admission.submit(undeploying ? AdmissionController.UNDEPLOY : AdmissionController.DEPLOY,
+                                        new AdmissionController.Request() {
+      public void run(final Handler<Void> done) {
+        Handler<JsonObject> handler = new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            done.handle(null);
+            resultHandler.handle(result);
+          }
+        };
+        if (undeploying) {
+          undeploy(spec, handler);
+        } else {
+          deploy(spec, handler);
+        }
+      }
+    });
+    if (!admitted) {
+      resultHandler.handle(busy().putString("module", fullName(spec)));
+    }
+  }
+
+  // The reply to a request turned away by the admission controller
+  private JsonObject busy() {
+    long retryAfter = admission.retryAfter();
+    logger.error("turning away a request, " + admission.toJson().getInteger("queued") + " requests queued");
+    return errorResult("busy, retry in " + retryAfter + "ms").putNumber("retryAfter", retryAfter);
+  }
+
+  private void doDeployBatch(final Message<JsonObject> message) {
+
+    final JsonArray modules = message.body().getArray("modules");
+    if (modules == null) {
+      sendError(message, "modules must be specified");
       return;
     }
 
-    final String moduleOwner = getMandatoryString("moduleOwner", message);
-    if (moduleOwner == null) {
+    // allow the requester to throttle harder than our configured limit, but never to go wider
+    final int concurrency = Math.max(1, Math.min(batchConcurrency, message.body().getInteger("concurrency", batchConcurrency)));
+
+    logger.info("Batch deploy of " + modules.size() + " modules, concurrency " + concurrency);
+
+    new BatchRun(modules, concurrency, new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        message.reply(result);
+      }
+    }).start();
+  }
+
+  // Deploys, or with teardown undeploys, the `modules` of a stack in the order of their dependencies
+  private void doStack(final Message<JsonObject> message, final boolean teardown) {
+
+    JsonArray modules = message.body().getArray("modules");
+    if (modules == null) {
+      sendError(message, "modules must be specified");
+      return;
+    }
+
+    DeploymentGraph graph;
+    try {
+      graph = DeploymentGraph.of(modules);
+    } catch (IllegalArgumentException e) {
+      sendError(message, e.getMessage());
+      return;
+    }
+
+    for (String key : graph.modules()) {
+      String invalid = validateSpec(graph.spec(key), !teardown);
+      if (invalid != null) {
+        sendError(message, key + ": " + invalid);
+        return;
+      }
+      if (teardown) {
+        continue;
+      }
+      // whatever the stack needs from outside of it must be running already
+      for (String dependency : graph.external(key)) {
+        DeploymentInfo deploymentInfo = deployments.get(dependency);
+        if (deploymentInfo == null || deploymentInfo.state != State.DEPLOYED) {
+          sendError(message, key + " depends on " + dependency + ", which is neither part of the stack nor deployed");
+          return;
+        }
+      }
+    }
+
+    logger.info((teardown ? "Undeploying" : "Deploying") + " a stack of " + graph.modules().size() + " modules");
+
+    new StackRun(graph, teardown, new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        reports.publish(result.copy().putString("action", teardown ? "stack-undeploy" : "stack-deploy"));
+        message.reply(result);
+      }
+    }).start();
+  }
+
+  /*
+   * Deploys a single module spec, the `deploy` message body, and hands the outcome to resultHandler as a
+   * status / message JsonObject, the same shape BusModBase's sendOK and sendError reply with.
+   */
+  private void deploy(final JsonObject spec, Handler<JsonObject> replyHandler) {
+    deploy(spec, new DeployTrace(correlationId(spec), fullName(spec)), replyHandler);
+  }
+
+  private void deploy(final JsonObject spec, final DeployTrace trace, Handler<JsonObject> replyHandler) {
+    // a retried request gets the outcome of the original, rather than deploying, or with xgrade restarting, again
+    replyHandler = remembered("deploy", spec, replyHandler);
+    if (replyHandler == null) {
+      return;
+    }
+    final Handler<JsonObject> resultHandler = traced(trace, timed("deploy", spec, replyHandler));
+
+    // Get mandatory fields from the spec
+    long validating = DeployTrace.begin();
+    final String invalid = validateSpec(spec, true);
+    trace.end("validate", validating);
+    if (invalid != null) {
+      logger.error(invalid);
+      resultHandler.handle(errorResult(invalid));
       return;
     }
 
-    final String moduleVersion = getMandatoryString("moduleVersion", message);
-    if (moduleVersion == null) {
+    // Operations on the same module run one at a time, so the next deploy or undeploy of it only looks at
+    // the deployments map once this one has finished updating it.
+    final long queued = DeployTrace.begin();
+    operations.submit(spec.getString("moduleOwner") + "~" + spec.getString("moduleName"), new KeyedOperationQueue.Operation() {
+      public void run(final Handler<Void> done) {
+        trace.end("queue", queued);
+        final Handler<JsonObject> released = once(releasing(done, resultHandler));
+
+        // The deadline covers fetching the module as well as starting it, a stalled download is a hung deploy
+        final long timeout = spec.getLong("timeout", deployTimeout);
+        final long resolving = DeployTrace.begin();
+        final Deadline deadline = new Deadline(timeout, new Handler<Void>() {
+          public void handle(Void ignored) {
+            // nothing is deployed yet, whatever the checkout brings is ignored once it arrives
+            trace.end("resolve", resolving);
+            reports.publish(new JsonObject()
+                                .putString("module", spec.getString("moduleName"))
+                                .putString("action", "deploy")
+                                .putString("status", "error")
+                                .putBoolean("xgrade", spec.getBoolean("xgrade", false))
+                                .putString("detail", "timed out after " + timeout + "ms resolving")
+                                .putString("correlationId", trace.correlationId())
+                                .putObject("trace", trace.summary()));
+            logger.error("deploy of " + fullName(spec) + " timed out after " + timeout + "ms resolving");
+            released.handle(errorResult("deploy of " + fullName(spec) + " timed out after " + timeout + "ms resolving"));
+          }
+        });
+        final Handler<JsonObject> finished = new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            deadline.finish();
+            released.handle(result);
+          }
+        };
+
+        try {
+          // a cached copy of the module is checked before the platform gets to start it
+          moduleCache.checkout(fullName(spec), trace, new Handler<Void>() {
+            public void handle(Void ignored) {
+              if (deadline.expired()) {
+                return;
+              }
+              trace.end("resolve", resolving);
+              try {
+                deployModule(spec, trace, deadline, finished);
+              } catch (RuntimeException e) {
+                failed("deploy", spec, e, finished);
+              }
+            }
+          });
+        } catch (RuntimeException e) {
+          failed("deploy", spec, e, finished);
+        }
+      }
+    });
+  }
+
+  // Fetches the `modules` of the request, owner~name~version strings, into the module cache
+  private void doPrefetch(final Message<JsonObject> message) {
+
+    JsonArray modules = message.body().getArray("modules");
+    if (modules == null) {
+      sendError(message, "modules must be specified");
       return;
     }
 
-    final JsonObject moduleConfig = getMandatoryObject("moduleConfig", message);
-    if (moduleConfig == null) {
+    final List<String> names = new ArrayList<>();
+    for (Object module : modules) {
+      names.add(String.valueOf(module));
+    }
+
+    logger.info("Prefetching " + names.size() + " modules");
+
+    moduleCache.prefetch(names, new Handler<JsonArray>() {
+      public void handle(JsonArray results) {
+        int cached = 0;
+        for (Object result : results) {
+          if (!"error".equals(((JsonObject) result).getString("status"))) {
+            cached++;
+          }
+        }
+        JsonObject reply = new JsonObject()
+                               .putString("status", cached == names.size() ? "ok" : "error")
+                               .putString("message", cached + " of " + names.size() + " modules cached")
+                               .putString("node", nodeId)
+                               .putArray("results", results);
+        reports.publish(reply.copy().putString("action", "prefetch"));
+        message.reply(reply);
+      }
+    });
+  }
+
+  // Takes a new desired state, the `modules` we should be running, and reconciles against it
+  private void doDesired(final Message<JsonObject> message) {
+
+    JsonArray modules = message.body().getArray("modules");
+    if (modules == null) {
+      sendError(message, "modules must be specified");
       return;
     }
 
+    Set<String> keys = new HashSet<>();
+    for (Object element : modules) {
+      if (!(element instanceof JsonObject)) {
+        sendError(message, "modules must be deploy specs");
+        return;
+      }
+      JsonObject spec = (JsonObject) element;
+      String invalid = validateSpec(spec, true);
+      if (invalid != null) {
+        sendError(message, invalid);
+        return;
+      }
+      if (!keys.add(spec.getString("moduleOwner") + "~" + spec.getString("moduleName"))) {
+        sendError(message, "duplicate module " + spec.getString("moduleOwner") + "~" + spec.getString("moduleName"));
+        return;
+      }
+    }
+
+    desired = message.body().copy();
+    reconcile(new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        message.reply(result);
+      }
+    });
+  }
+
+  /*
+   * Diffs the desired state against the deployments map and applies only what differs, in parallel up to
+   * batchConcurrency. Modules which are missing are deployed, modules deployed with another version, config or
+   * number of instances are xgraded, and unless the desired state says "prune": false, modules which are not in
+   * it are undeployed. Modules which already match are left alone.
+   *
+   * If a reconcile is running, runs the one after it instead, against whichever desired state is the latest by
+   * then, so two never diff the same deployments and a pushed manifest never races the one before it.
+   */
+  private void reconcile(Handler<JsonObject> resultHandler) {
+    reconcileWaiters.add(resultHandler);
+    if (!reconciling) {
+      nextReconcile();
+    }
+  }
+
+  private void nextReconcile() {
+    final List<Handler<JsonObject>> waiters = new ArrayList<>(reconcileWaiters);
+    reconcileWaiters.clear();
+    reconciling = true;
+
+    final Set<String> wanted = new HashSet<>();
+    JsonArray actions = new JsonArray();
+    int unchanged = 0;
+
+    for (Object element : desired.getArray("modules")) {
+      JsonObject spec = (JsonObject) element;
+      String key = spec.getString("moduleOwner") + "~" + spec.getString("moduleName");
+      wanted.add(key);
+
+      DeploymentInfo current = deployments.get(key);
+      if (current != null && current.moduleVersion.equals(spec.getString("moduleVersion"))
+          && current.configHash.equals(ConfigHash.of(spec.getObject("moduleConfig")))
+          && current.instances == instances(spec)) {
+        unchanged++;
+        continue;
+      }
+      // xgrade either way, something may have deployed it since we looked
+      actions.addObject(new JsonObject()
+                            .putString("operation", "deploy")
+                            .putObject("spec", spec.copy().putBoolean("xgrade", true)));
+    }
+
+    if (desired.getBoolean("prune", true)) {
+      for (Map.Entry<String, DeploymentInfo> entry : deployments.entrySet()) {
+        if (!wanted.contains(entry.getKey())) {
+          actions.addObject(new JsonObject()
+                                .putString("operation", "undeploy")
+                                .putObject("spec", entry.getValue().toSpec()));
+        }
+      }
+    }
+
+    final int unchangedModules = unchanged;
+    final int actionCount = actions.size();
+    new BatchRun(actions, true, batchConcurrency, new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        result.putNumber("actions", actionCount)
+              .putNumber("unchanged", unchangedModules)
+              .putString("node", nodeId);
+        if (actionCount > 0) {
+          reports.publish(result.copy().putString("action", "reconcile"));
+        }
+        reconciling = false;
+        for (Handler<JsonObject> waiter : waiters) {
+          waiter.handle(result);
+        }
+        if (!reconcileWaiters.isEmpty()) {
+          nextReconcile();
+        }
+      }
+    }).start();
+  }
+
+  // owner~name~version of every module we have deployed or are deploying, which the module cache must keep
+  private Set<String> deployedModules() {
+    Set<String> modules = new HashSet<>();
+    for (DeploymentInfo deploymentInfo : deployments.values()) {
+      modules.add(deploymentInfo.getFullName());
+    }
+    return modules;
+  }
+
+  /*
+   * Does the actual deployment of a validated spec, only ever called from the module's operation queue. The
+   * `deadline` already runs, since the module was checked out, and this takes over what happens on its expiry.
+   */
+  private void deployModule(final JsonObject spec, final DeployTrace trace, final Deadline deadline,
+                            final Handler<JsonObject> resultHandler) {
+
+    final String moduleName = spec.getString("moduleName");
+    final String moduleOwner = spec.getString("moduleOwner");
+    final String moduleVersion = spec.getString("moduleVersion");
+    final JsonObject moduleConfig = spec.getObject("moduleConfig");
+    final int instances = instances(spec);
+
     // If upgrade / downgrade is allowed or not, if this is true it WILL undeploy
     // whatever version you are running of the module before deploying the specified one.
-    final boolean moduleXgrade = message.body().getBoolean("xgrade", false);
+    final boolean moduleXgrade = spec.getBoolean("xgrade", false);
 
 
     // modules use a fully qualified name, so lets build that up.
     final String module = moduleOwner + "~" + moduleName + "~" + moduleVersion;
 
-    // Build up a new deploymentInfo object for making things a bit easier for `this` deployment call!
-    final DeploymentInfo deploymentInfo = new DeploymentInfo("", moduleName, moduleOwner, moduleVersion, moduleConfig);
-
     // Check if we have a deployment like this already
     if ( deployments.containsKey(moduleOwner + "~" + moduleName) && !moduleXgrade ) {
 
-      eb.publish(reportAddress, new JsonObject()
+      reports.publish(new JsonObject()
                                     .putString("action", "deploy")
                                     .putString("module", module)
                                     .putString("status", "error")
                                     .putBoolean("xgrade", moduleXgrade)
-                                    .putString("detail", "already-deployed version: " + deployments.get(moduleOwner + "~" + moduleName).moduleVersion ));
+                                    .putString("detail", "already-deployed version: " + deployments.get(moduleOwner + "~" + moduleName).moduleVersion )
+                                    .putString("correlationId", trace.correlationId())
+                                    .putObject("trace", trace.summary()));
 
-      sendError(message, "already-deployed version: " + deployments.get(moduleOwner + "~" + moduleName).moduleVersion);
+      logger.error("already-deployed version: " + deployments.get(moduleOwner + "~" + moduleName).moduleVersion);
+      resultHandler.handle(errorResult("already-deployed version: " + deployments.get(moduleOwner + "~" + moduleName).moduleVersion));
 
     } else {
-      if (moduleXgrade) {
-        logger.info("Undeploying since Xgrade is true!");
+      final DeploymentInfo previous = deployments.get(moduleOwner + "~" + moduleName);
+
+      // With start-stop the running version keeps serving until its replacement is up
+      final boolean startThenStop = moduleXgrade && previous != null
+                                    && XGRADE_START_STOP.equals(spec.getString("xgradeStrategy", xgradeStrategy));
+
+      if (startThenStop) {
+        logger.info("Starting " + module + " alongside " + previous.getFullName() + " since Xgrade is start-stop");
+        previous.state = State.XGRADING;
+
+      } else {
+        if (moduleXgrade) {
+          logger.info("Undeploying since Xgrade is true!");
+
+          try {
+            container.undeployModule( deployments.get(moduleOwner + "~" + moduleName).deploymentID);
+          } catch (NullPointerException e) {
+            logger.error("No deployments in this container");
+          } catch (PlatformManagerException e) {
+            logger.error("Undeploy error, possibly not deployed");
+            e.printStackTrace();
+          }
 
-        try {
-          container.undeployModule( deployments.get(moduleOwner + "~" + moduleName).deploymentID);
-        } catch (NullPointerException e) {
-          logger.error("No deployments in this container");
-        } catch (PlatformManagerException e) {
-          logger.error("Undeploy error, possibly not deployed");
-          e.printStackTrace();
         }
 
+        // Hold the module's place in the deployments map while the platform deploys it
+        DeploymentInfo placeholder = new DeploymentInfo("", moduleName, moduleOwner, moduleVersion, moduleConfig, instances, State.DEPLOYING);
+        if (previous != null) {
+          // the journal still holds the replaced version, and a compaction meanwhile must keep holding it
+          placeholder.journalled = previous.toSpec();
+        }
+        deployments.put(moduleOwner + "~" + moduleName, placeholder);
       }
 
+      // with platform resolution this includes the platform fetching the module from its repositories
+      final long starting = DeployTrace.begin();
+
+      // A hung resolution or module start must not hold the requester, or the module's queue, forever
+      final long timeout = spec.getLong("timeout", deployTimeout);
+      deadline.onExpiry(new Handler<Void>() {
+        public void handle(Void ignored) {
+          abandonDeploy(moduleOwner + "~" + moduleName, previous, startThenStop);
+          trace.end("start", starting);
+
+          reports.publish(new JsonObject()
+                              .putString("module", moduleName)
+                              .putString("action", "deploy")
+                              .putString("status", "error")
+                              .putBoolean("xgrade", moduleXgrade)
+                              .putNumber("instances", instances)
+                              .putString("detail", "timed out after " + timeout + "ms")
+                              .putString("correlationId", trace.correlationId())
+                              .putObject("trace", trace.summary()));
+          logger.error("deploy of " + module + " timed out after " + timeout + "ms");
+          resultHandler.handle(errorResult("deploy of " + module + " timed out after " + timeout + "ms"));
+        }
+      });
+
       //System.out.println("Attempting deploy of module " + module );
-      container.deployModule(module, moduleConfig, new AsyncResultHandler<String>() { 
+      container.deployModule(module, moduleConfig, instances, new AsyncResultHandler<String>() { 
         public void handle(AsyncResult<String> asyncResult) {
-            if (asyncResult.succeeded()) {
+            if (deadline.finish()) {
+              // the requester has already been told it failed, so it must not be left running
+              if (asyncResult.succeeded()) {
+                undeployLate(module, asyncResult.result(), instances);
+              }
+              return;
+            }
+            trace.end("start", starting);
 
-                DeploymentInfo deploymentInfoConfig = new DeploymentInfo(asyncResult.result(), moduleName, moduleOwner, moduleVersion, moduleConfig);
+            if (asyncResult.failed()) {
+              asyncResult.cause().printStackTrace();
+              failed(asyncResult.cause().toString());
+              return;
+            }
 
-                // update the deployments map
+            final String deploymentID = asyncResult.result();
+
+            // with a readiness check the deploy only counts once the module says it is ready for traffic
+            final long readying = DeployTrace.begin();
+            awaitReady(spec.getObject("readiness"), module, new Handler<String>() {
+              public void handle(final String notReady) {
+                if (spec.getObject("readiness") != null) {
+                  trace.end("readiness", readying);
+                }
+                if (notReady != null) {
+                  logger.error(module + " is not ready, undeploying " + deploymentID + ": " + notReady);
+                  container.undeployModule(deploymentID, new AsyncResultHandler<Void>() {
+                    public void handle(AsyncResult<Void> undeployed) {
+                      failed(notReady);
+                    }
+                  });
+                  return;
+                }
+
+                DeploymentInfo deploymentInfoConfig = new DeploymentInfo(deploymentID, moduleName, moduleOwner, moduleVersion, moduleConfig, instances, State.DEPLOYED);
+                deploymentInfoConfig.previous = rollbackSpec(previous, deploymentInfoConfig);
+
+                // update the deployments map, for start-stop this is the swap from the old version to the new one
                 deployments.put(moduleOwner + "~" + moduleName, deploymentInfoConfig);
+                journalDeploy(deploymentInfoConfig);
 
                 JsonObject jsonReply = new JsonObject()
                                                     .putString("module", moduleName)
@@ -187,128 +1090,1585 @@ public class Deployer extends BusModBase {
                                                     .putString("status", "ok")
                                                     .putBoolean("xgrade", moduleXgrade)
                                                     .putObject("detail", new JsonObject()
-                                                        .putString("deploymentID" ,asyncResult.result())
-                                                        .putObject("config", moduleConfig));
-                eb.publish(reportAddress, jsonReply);
+                                                        .putString("deploymentID" ,deploymentID)
+                                                        .putNumber("instances", instances)
+                                                        .putObject("config", moduleConfig))
+                                                    .putString("correlationId", trace.correlationId())
+                                                    .putObject("trace", trace.summary());
+                long reporting = DeployTrace.begin();
+                reports.publish(jsonReply);
+                trace.end("report", reporting);
                 logger.info("deployed " + moduleName);
-                sendOK(message, new JsonObject().putString("message", asyncResult.result()));
-                
-            } else {
-
-                asyncResult.cause().printStackTrace();
 
-                // Notify the reportBus of this catastrophe
-                JsonObject jsonReply = new JsonObject()
-                                    .putString("module", moduleName)
-                                    .putString("action", "deploy")
-                                    .putString("status", "error")
-                                    .putBoolean("xgrade", moduleXgrade)
-                                    .putString("detail", asyncResult.cause().toString());
-                eb.publish(reportAddress, jsonReply);
-                logger.error("error deploying " + moduleName);
-                // Use BusMod sendError to notify the sender
-                sendError(message, asyncResult.cause().toString());
-            }
+                if (startThenStop) {
+                  final long replacing = DeployTrace.begin();
+                  undeployReplaced(previous, new Handler<Void>() {
+                    public void handle(Void ignored) {
+                      trace.end("undeploy-replaced", replacing);
+                      resultHandler.handle(okResult(deploymentID));
+                    }
+                  });
+                } else {
+                  resultHandler.handle(okResult(deploymentID));
+                }
+              }
+            });
+        }
 
+        private void failed(String cause) {
+            abandonDeploy(moduleOwner + "~" + moduleName, previous, startThenStop);
+
+            // Notify the reportBus of this catastrophe
+            JsonObject jsonReply = new JsonObject()
+                                .putString("module", moduleName)
+                                .putString("action", "deploy")
+                                .putString("status", "error")
+                                .putBoolean("xgrade", moduleXgrade)
+                                .putNumber("instances", instances)
+                                .putString("detail", cause)
+                                .putString("correlationId", trace.correlationId())
+                                .putObject("trace", trace.summary());
+            long reporting = DeployTrace.begin();
+            reports.publish(jsonReply);
+            trace.end("report", reporting);
+            logger.error("error deploying " + moduleName);
+            // notify the requester
+            resultHandler.handle(errorResult(cause));
         }
       });
     }
   }
 
-  private void doUndeploy(final Message<JsonObject> message) {
-
-    // Get mandatory fields from message
-    final String moduleName = getMandatoryString("moduleName", message);
-    if (moduleName == null) {
-      return;
-    }
-
-    final String moduleOwner = getMandatoryString("moduleOwner", message);
-    if (moduleOwner == null) {
+  /*
+   * Polls a module's readiness address until it replies with status "ok", then calls readyHandler with null.
+   * Gives up after the readiness timeout, calling readyHandler with the reason. Without a readiness check
+   * readyHandler is called straight away.
+   */
+  private void awaitReady(final JsonObject readiness, final String module, final Handler<String> readyHandler) {
+    if (readiness == null) {
+      readyHandler.handle(null);
       return;
     }
 
-    final String moduleVersion = getMandatoryString("moduleVersion", message);
-    if (moduleVersion == null) {
-      return;
-    }
+    final String readinessAddress = readiness.getString("address");
+    final long interval = Math.max(10, readiness.getLong("interval", 500));
+    final long timeout = readiness.getLong("timeout", 30000);
+    final JsonObject probe = readiness.getObject("message", new JsonObject().putString("action", "health"));
+    final long giveUpAt = System.currentTimeMillis() + timeout;
 
-    // we dont need config for undeploy, so lets just stub it!
-    final JsonObject moduleConfig = new JsonObject();
+    logger.info("waiting for " + module + " to be ready on " + readinessAddress);
 
-    // modules use a fully qualified name, so lets build that up.
-    final String module = moduleOwner + "~" + moduleName + "~" + moduleVersion;
+    new Handler<Long>() {
+      private String lastAnswer = "no answer";
 
-    if ( deployments.containsKey(moduleOwner + "~" + moduleName) ) {
-      if ( deployments.get(moduleOwner + "~" + moduleName).moduleVersion.equals(moduleVersion) ) {
+      public void handle(Long ignored) {
+        final Handler<Long> poll = this;
+        long remaining = Math.max(1, giveUpAt - System.currentTimeMillis());
 
-        container.undeployModule( deployments.get(moduleOwner + "~" + moduleName).deploymentID, new AsyncResultHandler<Void>() {        
-        
-        public void handle(AsyncResult<Void> asyncResult) {
-          if (asyncResult.succeeded()) { 
-            eb.publish(reportAddress, new JsonObject()
-                                          .putString("action", "undeploy")
-                                          .putString("module", module)
-                                          .putString("status", "ok")
-                                          .putString("detail", "Undeployed " + module));
+        eb.sendWithTimeout(readinessAddress, probe, Math.min(interval, remaining), new Handler<AsyncResult<Message<JsonObject>>>() {
+          public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+            if (asyncResult.succeeded() && "ok".equals(asyncResult.result().body().getString("status"))) {
+              readyHandler.handle(null);
+              return;
+            }
+            lastAnswer = asyncResult.succeeded() ? asyncResult.result().body().encode() : asyncResult.cause().getMessage();
 
-            deployments.remove(moduleOwner + "~" + moduleName);
-            logger.info("undeployed " + moduleName);
-            sendOK(message);
+            if (System.currentTimeMillis() >= giveUpAt) {
+              readyHandler.handle("not ready within " + timeout + "ms, last answer: " + lastAnswer);
+            } else {
+              vertx.setTimer(interval, poll);
+            }
           }
-        }
+        });
+      }
+    }.handle(null);
+  }
+
+  /*
+   * The deploy request which would roll `replacement` back to the deployment it replaced. Redeploying the same
+   * version and config keeps the one from before, so a restart doesn't make the module its own rollback.
+   */
+  private static JsonObject rollbackSpec(DeploymentInfo replaced, DeploymentInfo replacement) {
+    if (replaced == null) {
+      return null;
+    }
+    if (replaced.moduleVersion.equals(replacement.moduleVersion) && replaced.configHash.equals(replacement.configHash)) {
+      return replaced.previous;
+    }
+    return replaced.toSpec();
+  }
+
+  // Puts the deployments map back the way it should be after a deploy which failed or timed out
+  private void abandonDeploy(String key, DeploymentInfo previous, boolean startThenStop) {
+    if (startThenStop) {
+      // the old version was never touched, it carries on as before
+      previous.state = State.DEPLOYED;
+    } else {
+      deployments.remove(key);
+      if (previous != null) {
+        // stop-start already undeployed the old version
+        journalUndeploy(key);
+      }
+    }
+  }
+
+  // Undeploys a module whose deploy completed after its deadline, nobody knows about it anymore
+  private void undeployLate(final String module, final String deploymentID, final int instances) {
+    logger.error("deploy of " + module + " completed after its timeout, undeploying " + deploymentID);
+
+    container.undeployModule(deploymentID, new AsyncResultHandler<Void>() {
+      public void handle(AsyncResult<Void> asyncResult) {
+        reports.publish(new JsonObject()
+                            .putString("action", "undeploy")
+                            .putString("module", module)
+                            .putString("status", asyncResult.succeeded() ? "ok" : "error")
+                            .putNumber("instances", instances)
+                            .putString("detail", asyncResult.succeeded()
+                                                 ? "Undeployed late deployment " + deploymentID
+                                                 : asyncResult.cause().toString()));
+      }
+    });
+  }
+
+  private void journalDeploy(DeploymentInfo deploymentInfo) {
+    if (journal != null) {
+      journal.recordDeploy(deploymentInfo.toSpec());
+      compactJournalIfDue();
+    }
+  }
+
+  private void journalUndeploy(String key) {
+    if (journal != null) {
+      journal.recordUndeploy(key);
+      compactJournalIfDue();
+    }
+  }
+
+  private void compactJournalIfDue() {
+    if (journal.compactionDue()) {
+      compactJournal();
+    }
+  }
+
+  /*
+   * Snapshots everything that is deployed, modules still on their way up are left to their own journal record.
+   * One replacing a deployed version with stop-start xgrade keeps the replaced version, as the journal does, so
+   * a crash before the new version is up still brings one of them back.
+   */
+  private void compactJournal() {
+    List<JsonObject> specs = new ArrayList<>();
+    for (DeploymentInfo deploymentInfo : deployments.values()) {
+      if (deploymentInfo.state != State.DEPLOYING) {
+        specs.add(deploymentInfo.toSpec());
+      } else if (deploymentInfo.journalled != null) {
+        specs.add(deploymentInfo.journalled);
+      }
+    }
+    journal.compact(specs);
+  }
+
+  // Redeploys what the journal says we were running before the restart
+  private void recover() {
+    final List<JsonObject> specs;
+    try {
+      specs = journal.recover();
+    } catch (IOException e) {
+      logger.error("unable to read the deployment journal, starting empty", e);
+      return;
+    }
+    if (specs.isEmpty()) {
+      return;
+    }
+
+    logger.info("Recovering " + specs.size() + " deployments from the journal");
+    new BatchRun(new JsonArray(specs.toArray()), batchConcurrency, new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        logger.info("Recovery finished, " + result.getString("message"));
+        reports.publish(result.copy().putString("action", "recover"));
+        // modules which failed to come back are not deployed anymore, so the journal shouldn't say otherwise
+        compactJournal();
+      }
+    }).start();
+  }
+
+  // Undeploys a version that start-stop Xgrade has already swapped out of the deployments map
+  private void undeployReplaced(final DeploymentInfo replaced, final Handler<Void> doneHandler) {
+    final String module = replaced.getFullName();
+
+    container.undeployModule(replaced.deploymentID, new AsyncResultHandler<Void>() {
+      public void handle(AsyncResult<Void> asyncResult) {
+        if (asyncResult.succeeded()) {
+          reports.publish(new JsonObject()
+                                        .putString("action", "undeploy")
+                                        .putString("module", module)
+                                        .putString("status", "ok")
+                                        .putNumber("instances", replaced.instances)
+                                        .putString("detail", "Undeployed " + module));
+          logger.info("undeployed replaced " + module);
+        } else {
+          // the new version is up regardless, so this is only worth a report
+          reports.publish(new JsonObject()
+                                        .putString("action", "undeploy")
+                                        .putString("module", module)
+                                        .putString("status", "error")
+                                        .putString("detail", asyncResult.cause().toString()));
+          logger.error("error undeploying replaced " + module);
+        }
+        doneHandler.handle(null);
+      }
+    });
+  }
+
+  // Wraps resultHandler so the operation's latency and outcome are recorded in the metrics
+  private Handler<JsonObject> timed(final String operation, JsonObject spec, final Handler<JsonObject> resultHandler) {
+    final String module = spec.getString("moduleOwner") != null && spec.getString("moduleName") != null
+                          ? spec.getString("moduleOwner") + "~" + spec.getString("moduleName") : null;
+    final long started = metrics.start(operation);
+
+    return new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        metrics.end(operation, module, started, "ok".equals(result.getString("status")));
+        resultHandler.handle(result);
+      }
+    };
+  }
+
+  // Tags a deploy's outcome with its correlation id and a summary of its trace, and writes the trace out if we keep a trace file
+  private Handler<JsonObject> traced(final DeployTrace trace, final Handler<JsonObject> resultHandler) {
+    return new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        resultHandler.handle(result.putString("correlationId", trace.correlationId()).putObject("trace", trace.summary()));
+        if (traces != null) {
+          traces.write(trace);
+        }
+      }
+    };
+  }
+
+  // The id tying a deploy's spans, reports and reply together, the requester's own if it gave one
+  private static String correlationId(JsonObject spec) {
+    Object id = spec.getValue("correlationId");
+    if (id == null) {
+      id = spec.getValue("requestId");
+    }
+    return id != null ? String.valueOf(id) : UUID.randomUUID().toString();
+  }
+
+  // owner~name~version of a spec
+  private static String fullName(JsonObject spec) {
+    return spec.getString("moduleOwner") + "~" + spec.getString("moduleName") + "~" + spec.getString("moduleVersion");
+  }
+
+  // Returns the error for the first missing mandatory field of a deploy / undeploy spec, or null if the spec is complete
+  private static String validateSpec(JsonObject spec, boolean configRequired) {
+    for (String field : new String[] {"moduleName", "moduleOwner", "moduleVersion"}) {
+      if (spec.getString(field) == null) {
+        return field + " must be specified";
+      }
+    }
+    if (configRequired && spec.getObject("moduleConfig") == null) {
+      return "moduleConfig must be specified";
+    }
+    if (instances(spec) < 1) {
+      return "instances must be a positive number or \"" + INSTANCES_AUTO + "\"";
+    }
+    Object timeout = spec.getValue("timeout");
+    if (timeout != null && (!(timeout instanceof Number) || ((Number) timeout).longValue() < 0)) {
+      return "timeout must be a number of milliseconds, 0 for none";
+    }
+    Object readiness = spec.getValue("readiness");
+    if (readiness != null && (!(readiness instanceof JsonObject) || ((JsonObject) readiness).getString("address") == null)) {
+      return "readiness must be an object with an address";
+    }
+    if (readiness != null) {
+      // these are read deep inside the deploy, where a bad one would leave the module neither deployed nor failed
+      for (String field : new String[] {"interval", "timeout"}) {
+        Object value = ((JsonObject) readiness).getValue(field);
+        if (value != null && (!(value instanceof Number) || ((Number) value).longValue() < 0)) {
+          return "readiness " + field + " must be a number of milliseconds";
+        }
+      }
+      Object probe = ((JsonObject) readiness).getValue("message");
+      if (probe != null && !(probe instanceof JsonObject)) {
+        return "readiness message must be an object";
+      }
+    }
+    Object xgrade = spec.getValue("xgrade");
+    if (xgrade != null && !(xgrade instanceof Boolean)) {
+      return "xgrade must be true or false";
+    }
+    String strategy = spec.getString("xgradeStrategy");
+    if (strategy != null && !XGRADE_STOP_START.equals(strategy) && !XGRADE_START_STOP.equals(strategy)) {
+      return "xgradeStrategy must be one of " + XGRADE_STOP_START + ", " + XGRADE_START_STOP;
+    }
+    return null;
+  }
+
+  // The number of instances a spec asks for, 1 if it doesn't say, 0 if it is not understood
+  private static int instances(JsonObject spec) {
+    Object instances = spec.getValue("instances");
+    if (instances == null) {
+      return 1;
+    }
+    if (INSTANCES_AUTO.equals(instances)) {
+      // one per core, which is what it takes for an event loop bound module to use the whole box
+      return Runtime.getRuntime().availableProcessors();
+    }
+    if (instances instanceof Number) {
+      return Math.max(0, ((Number) instances).intValue());
+    }
+    return 0;
+  }
+
+  /*
+   * For requests carrying a requestId, returns null if the request was seen before, in which case replyHandler
+   * gets the original's outcome, or replyHandler wrapped so the outcome is remembered. Requests without one are
+   * carried out every time.
+   */
+  private Handler<JsonObject> remembered(String operation, JsonObject spec, Handler<JsonObject> replyHandler) {
+    Object requestId = spec.getValue("requestId");
+    if (requestId == null) {
+      return replyHandler;
+    }
+    String key = operation + ":" + requestId;
+    if (requests.replay(key, replyHandler, System.currentTimeMillis())) {
+      logger.info("replaying the outcome of " + operation + " request " + requestId);
+      return null;
+    }
+    return requests.completing(key, replyHandler);
+  }
+
+  // Wraps resultHandler so the module's next queued operation is released as soon as this one has its outcome
+  private static Handler<JsonObject> releasing(final Handler<Void> done, final Handler<JsonObject> resultHandler) {
+    return new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        done.handle(null);
+        resultHandler.handle(result);
+      }
+    };
+  }
+
+  // Wraps resultHandler so only the first outcome gets through, for when an operation may throw after answering
+  private static Handler<JsonObject> once(final Handler<JsonObject> resultHandler) {
+    return new Handler<JsonObject>() {
+      private boolean answered = false;
+
+      public void handle(JsonObject result) {
+        if (!answered) {
+          answered = true;
+          resultHandler.handle(result);
+        }
+      }
+    };
+  }
+
+  // Answers an operation which threw with an error, rather than leaving the requester and the module's queue waiting
+  private void failed(String operation, JsonObject spec, RuntimeException e, Handler<JsonObject> resultHandler) {
+    logger.error(operation + " of " + fullName(spec) + " failed", e);
+    resultHandler.handle(errorResult(operation + " failed: " + e));
+  }
+
+  private static JsonObject okResult(String detail) {
+    return new JsonObject().putString("status", "ok").putString("message", detail);
+  }
+
+  private static JsonObject errorResult(String detail) {
+    return new JsonObject().putString("status", "error").putString("message", detail);
+  }
+
+  /*
+   * Runs the module specs of a batch through deploy(), keeping at most `concurrency` of them in flight. Once
+   * every spec has finished the aggregated result is handed to doneHandler, results are in the order of the specs.
+   */
+  private final class BatchRun {
+    private final JsonArray specs;
+    private final boolean actions; // specs are {operation, spec} pairs rather than deploy specs
+    private final int concurrency;
+    private final Handler<JsonObject> doneHandler;
+    private final JsonObject[] results;
+    private int next = 0;
+    private int completed = 0;
+    private int failed = 0;
+
+    private BatchRun(JsonArray specs, int concurrency, Handler<JsonObject> doneHandler) {
+      this(specs, false, concurrency, doneHandler);
+    }
+
+    private BatchRun(JsonArray specs, boolean actions, int concurrency, Handler<JsonObject> doneHandler) {
+      this.specs = specs;
+      this.actions = actions;
+      this.concurrency = concurrency;
+      this.doneHandler = doneHandler;
+      this.results = new JsonObject[specs.size()];
+    }
+
+    void start() {
+      if (specs.size() == 0) {
+        finish();
+        return;
+      }
+      // deploy() may complete synchronously, so guard against launching beyond the end of the batch
+      for (int i = 0; i < concurrency && next < specs.size(); i++) {
+        launchNext();
+      }
+    }
+
+    private void launchNext() {
+      final int index = next++;
+      final Object element = specs.get(index);
+      final JsonObject item = element instanceof JsonObject ? (JsonObject) element : new JsonObject();
+      final JsonObject spec = actions ? item.getObject("spec") : item;
+      final String operation = actions ? item.getString("operation") : "deploy";
+
+      Handler<JsonObject> handler = new Handler<JsonObject>() {
+        public void handle(JsonObject result) {
+          results[index] = result.putString("module",
+              spec.getString("moduleOwner") + "~" + spec.getString("moduleName") + "~" + spec.getString("moduleVersion"));
+          if (actions) {
+            result.putString("operation", operation);
+          }
+          if (!"ok".equals(result.getString("status"))) {
+            failed++;
+          }
+          completed++;
+
+          if (next < specs.size()) {
+            launchNext();
+          } else if (completed == specs.size()) {
+            finish();
+          }
+        }
+      };
+
+      admitted("undeploy".equals(operation), spec, handler);
+    }
+
+    private void finish() {
+      JsonArray resultsJson = new JsonArray();
+      for (JsonObject result : results) {
+        resultsJson.addObject(result);
+      }
+      doneHandler.handle(new JsonObject()
+                            .putString("status", failed == 0 ? "ok" : "error")
+                            .putString("message", (specs.size() - failed) + " of " + specs.size() + (actions ? " actions applied" : " modules deployed"))
+                            .putNumber(actions ? "applied" : "deployed", specs.size() - failed)
+                            .putNumber("failed", failed)
+                            .putArray("results", resultsJson));
+    }
+  }
+
+  private void doMetrics(final Message<JsonObject> message) {
+    boolean includeModules = message.body() == null || message.body().getBoolean("modules", true);
+    sendOK(message, metrics.toJson(includeModules)
+                        .putString("node", nodeId)
+                        .putNumber("replayed", requests.replayed())
+                        .putObject("admission", admission.toJson())
+                        .putObject("resources", resourceFigures())
+                        .putArray("repositories", moduleCache.repositoryStats()));
+  }
+
+  // The last resource sample of every deployment, by owner~name~version, and how many were over a limit
+  private JsonObject resourceFigures() {
+    JsonObject modules = new JsonObject();
+    for (DeploymentInfo deploymentInfo : deployments.values()) {
+      if (deploymentInfo.resources != null) {
+        modules.putObject(deploymentInfo.getFullName(), deploymentInfo.resources);
+      }
+    }
+    return new JsonObject()
+                .putBoolean("sampled", resources != null)
+                .putNumber("overLimit", noisyModules)
+                .putObject("modules", modules);
+  }
+
+  /*
+   * Samples what every deployment uses of the node. A deployment over a limit for resourceStrikes samples in a
+   * row is reported, and with resourceEvict undeployed, so one module can't keep starving the others. Every
+   * deployment over a limit counts against the node's placement score, see PlacementScheduler.
+   */
+  private void sampleResources() {
+    resources.sample(deployedModules(), new Handler<Map<String, JsonObject>>() {
+      public void handle(Map<String, JsonObject> figures) {
+        int noisy = 0;
+        for (DeploymentInfo deploymentInfo : new ArrayList<>(deployments.values())) {
+          JsonObject sample = figures.get(deploymentInfo.getFullName());
+          if (sample == null || deploymentInfo.state != State.DEPLOYED) {
+            continue;
+          }
+          deploymentInfo.resources = sample;
+          String over = overLimit(sample);
+          if (over == null) {
+            deploymentInfo.strikes = 0;
+            continue;
+          }
+          sample.putString("overLimit", over);
+          noisy++;
+          if (++deploymentInfo.strikes != resourceStrikes) {
+            continue;
+          }
+
+          final String module = deploymentInfo.getFullName();
+          logger.error(module + " is over its resource limits, " + over + (resourceEvict ? ", evicting it" : ""));
+          reports.publish(new JsonObject()
+                              .putString("action", "resource-limit")
+                              .putString("node", nodeId)
+                              .putString("module", module)
+                              .putString("detail", over)
+                              .putObject("resources", sample)
+                              .putBoolean("evicted", resourceEvict));
+          if (resourceEvict) {
+            undeploy(deploymentInfo.toSpec(), new Handler<JsonObject>() {
+              public void handle(JsonObject result) {
+                if (!"ok".equals(result.getString("status"))) {
+                  logger.error("unable to evict " + module + ": " + result.getString("message"));
+                }
+              }
+            });
+          }
+        }
+        noisyModules = noisy;
+      }
+    });
+  }
+
+  // Describes the resource limit a sample is over, null if it is within all of them
+  private String overLimit(JsonObject sample) {
+    int threads = sample.getInteger("threads");
+    if (resourceThreadLimit > 0 && threads > resourceThreadLimit) {
+      return threads + " threads, over resourceThreadLimit " + resourceThreadLimit;
+    }
+    double cpu = sample.getNumber("cpu").doubleValue();
+    if (resourceCpuLimit > 0 && cpu > resourceCpuLimit) {
+      return cpu + " of a processor, over resourceCpuLimit " + resourceCpuLimit;
+    }
+    return null;
+  }
+
+  private void doPlace(final Message<JsonObject> message) {
+
+    // the target node validates the request, we only need to pick it
+    final String targetNode = placement.pick(message.body().getArray("nodes"), message.body().getArray("excludeNodes"), System.currentTimeMillis());
+    if (targetNode == null) {
+      sendError(message, "no eligible node for placement");
+      return;
+    }
+
+    logger.info("placing deployment on node " + targetNode);
+    eb.sendWithTimeout(nodeAddress(targetNode) + ".deploy", message.body(), forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+      public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+        if (asyncResult.succeeded()) {
+          message.reply(asyncResult.result().body().copy().putString("node", targetNode));
+        } else {
+          sendError(message, "placement on node " + targetNode + " failed: " + asyncResult.cause().getMessage());
+        }
+      }
+    });
+  }
+
+  private void doUndeploy(final Message<JsonObject> message) {
+
+    // undeploys free resources, so they go ahead of deploys
+    admit(message, AdmissionController.UNDEPLOY, new AdmissionController.Request() {
+      public void run(final Handler<Void> done) {
+        undeploy(message.body(), new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            done.handle(null);
+            message.reply(result);
+          }
+        });
+      }
+    });
+  }
+
+  private void undeploy(final JsonObject spec, Handler<JsonObject> replyHandler) {
+    replyHandler = remembered("undeploy", spec, replyHandler);
+    if (replyHandler == null) {
+      return;
+    }
+    final Handler<JsonObject> resultHandler = timed("undeploy", spec, replyHandler);
+
+    // Get mandatory fields from the spec, we dont need config for undeploy
+    final String invalid = validateSpec(spec, false);
+    if (invalid != null) {
+      logger.error(invalid);
+      resultHandler.handle(errorResult(invalid));
+      return;
+    }
+
+    operations.submit(spec.getString("moduleOwner") + "~" + spec.getString("moduleName"), new KeyedOperationQueue.Operation() {
+      public void run(Handler<Void> done) {
+        Handler<JsonObject> released = once(releasing(done, resultHandler));
+        try {
+          undeployModule(spec, released);
+        } catch (RuntimeException e) {
+          failed("undeploy", spec, e, released);
+        }
+      }
+    });
+  }
+
+  // Does the actual undeployment of a validated spec, only ever called from the module's operation queue
+  private void undeployModule(final JsonObject spec, final Handler<JsonObject> resultHandler) {
+
+    final String moduleName = spec.getString("moduleName");
+    final String moduleOwner = spec.getString("moduleOwner");
+    final String moduleVersion = spec.getString("moduleVersion");
+
+    // modules use a fully qualified name, so lets build that up.
+    final String module = moduleOwner + "~" + moduleName + "~" + moduleVersion;
+
+    if ( deployments.containsKey(moduleOwner + "~" + moduleName) ) {
+      if ( deployments.get(moduleOwner + "~" + moduleName).moduleVersion.equals(moduleVersion) ) {
+
+        final DeploymentInfo deploymentInfo = deployments.get(moduleOwner + "~" + moduleName);
+        deploymentInfo.state = State.UNDEPLOYING;
+
+        // On expiry the module stays UNDEPLOYING, we can't tell whether the platform will still stop it
+        final long timeout = spec.getLong("timeout", undeployTimeout);
+        final Deadline deadline = new Deadline(timeout, new Handler<Void>() {
+          public void handle(Void ignored) {
+            reports.publish(new JsonObject()
+                                .putString("action", "undeploy")
+                                .putString("module", module)
+                                .putString("status", "error")
+                                .putString("detail", "timed out after " + timeout + "ms"));
+            logger.error("undeploy of " + module + " timed out after " + timeout + "ms");
+            resultHandler.handle(errorResult("undeploy of " + module + " timed out after " + timeout + "ms"));
+          }
+        });
+
+        container.undeployModule( deploymentInfo.deploymentID, new AsyncResultHandler<Void>() {        
+        
+        public void handle(AsyncResult<Void> asyncResult) {
+          if (deadline.finish()) {
+            // late, the requester already has its error, but the deployments map can still learn the outcome
+            if (asyncResult.succeeded() && deployments.get(moduleOwner + "~" + moduleName) == deploymentInfo) {
+              deployments.remove(moduleOwner + "~" + moduleName);
+              journalUndeploy(moduleOwner + "~" + moduleName);
+            } else if (asyncResult.failed()) {
+              deploymentInfo.state = State.DEPLOYED;
+            }
+            reports.publish(new JsonObject()
+                                .putString("action", "undeploy")
+                                .putString("module", module)
+                                .putString("status", asyncResult.succeeded() ? "ok" : "error")
+                                .putString("detail", asyncResult.succeeded()
+                                                     ? "Undeployed " + module + " after its timeout"
+                                                     : asyncResult.cause().toString()));
+            return;
+          }
+
+          if (asyncResult.succeeded()) { 
+            reports.publish(new JsonObject()
+                                          .putString("action", "undeploy")
+                                          .putString("module", module)
+                                          .putString("status", "ok")
+                                          .putNumber("instances", deploymentInfo.instances)
+                                          .putString("detail", "Undeployed " + module));
+
+            deployments.remove(moduleOwner + "~" + moduleName);
+            journalUndeploy(moduleOwner + "~" + moduleName);
+            logger.info("undeployed " + moduleName);
+            resultHandler.handle(new JsonObject().putString("status", "ok"));
+          } else {
+            // the platform still has it, so we still have it
+            deploymentInfo.state = State.DEPLOYED;
+
+            reports.publish(new JsonObject()
+                                          .putString("action", "undeploy")
+                                          .putString("module", module)
+                                          .putString("status", "error")
+                                          .putString("detail", asyncResult.cause().toString()));
+            logger.error("error undeploying " + moduleName);
+            resultHandler.handle(errorResult(asyncResult.cause().toString()));
+          }
+        }
 
         });
 
       } else {
   
-        eb.publish(reportAddress, new JsonObject()
+        reports.publish(new JsonObject()
                                         .putString("action", "undeploy")
                                         .putString("module", module)
                                         .putString("status", "error")
                                         .putString("detail", "A different version is currently deployed"));
         logger.error("version missmatch in undeploy request, refusing");
-        sendError(message, "version mismatch");    
+        resultHandler.handle(errorResult("version mismatch"));
       }
 
     } else {
-      eb.publish(reportAddress, new JsonObject()
+      reports.publish(new JsonObject()
                                         .putString("action", "undeploy")
                                         .putString("module", module)
                                         .putString("status", "error")
                                         .putString("detail", "no such module: " + module + " deployed in this container"));
       logger.error("no such module to undeploy");
-      sendError(message, "no such module: " + module + " deployed in this container");
+      resultHandler.handle(errorResult("no such module: " + module + " deployed in this container"));
     }}
 
-  private void doAudit(final Message<JsonObject> message) { 
+  private void doAudit(final Message<JsonObject> message) {
+    admit(message, AdmissionController.AUDIT, new AdmissionController.Request() {
+      public void run(Handler<Void> done) {
+        audit(message);
+        done.handle(null);
+      }
+    });
+  }
+
+  private void audit(final Message<JsonObject> message) { 
     // Reply to inqueries as to deployed Modules
-    // Perdiodically announce my modules to the cluster
+    // Periodic announcements of changes go to the inventory address, see announceInterval
     logger.info("Audit: " + message.body());
     final String action = getMandatoryString("action", message);
+    if (action == null) {
+      return;
+    }
 
     if (!action.equals("audit")) {
       logger.info("bailing out");
       return;
     }
 
-    // Module stack to hold the contents of our deployments in Json format
-    JsonObject modulesJson = new JsonObject();
+    // Build up a new report object
+    long started = metrics.start("audit");
+    JsonObject jsonReport = auditReport(true);
+    metrics.end("audit", null, started, true);
+
+    reports.publish(jsonReport);
+
+    sendStatus("ok", message, jsonReport);
 
-    // Go through the deployments and place the FullName onto the module stack
-    for (String key : deployments.keySet()) {
-        modulesJson.putString("name", deployments.get(key).getFullName());
+  }
+
+  // A cluster audit gathering inventories, send ours to where it asks for them
+  private void doAuditScatter(final Message<JsonObject> message) {
+    String replyTo = message.body().getString("replyTo");
+    if (replyTo != null) {
+      eb.send(replyTo, auditReport(true));
     }
+  }
 
-    // Build up a new report object
-    JsonObject jsonReport = new JsonObject()
+  private void doClusterAudit(final Message<JsonObject> message) {
+    logger.info("Cluster audit: " + message.body());
+    final String action = getMandatoryString("action", message);
+    if (action == null) {
+      return;
+    }
+
+    if (!action.equals("audit")) {
+      logger.info("bailing out");
+      return;
+    }
+
+    final long timeout = message.body().getLong("timeout", clusterAuditTimeout);
+
+    final long started = metrics.start("cluster-audit");
+    new ClusterAudit(timeout, new Handler<JsonObject>() {
+      public void handle(JsonObject inventory) {
+        metrics.end("cluster-audit", null, started, inventory.getBoolean("complete", false));
+        reports.publish(inventory);
+        sendStatus("ok", message, inventory);
+      }
+    }).start();
+  }
+
+  /*
+   * Defines a replica set, a module which should run on `replicas` nodes of the cluster. The set is shared with
+   * every node and handed to the leader, which replies with the outcome of a replica pass, see ReplicaBalance.
+   */
+  private void doReplicas(final Message<JsonObject> message) {
+    final JsonObject set = message.body().copy();
+    boolean forwarded = set.getBoolean("forwarded", false);
+    set.removeField("forwarded");
+
+    String invalid = validateSpec(set, true);
+    Object replicas = set.getValue("replicas");
+    if (invalid == null && (!(replicas instanceof Number) || ((Number) replicas).intValue() < 0)) {
+      invalid = "replicas must be a number of nodes, 0 to stop the module everywhere";
+    }
+    if (invalid != null) {
+      logger.error(invalid);
+      sendError(message, invalid);
+      return;
+    }
+    set.putNumber("replicas", ((Number) replicas).intValue());
+    if (set.getValue("revision") == null) {
+      set.putNumber("revision", System.currentTimeMillis());
+    }
+
+    replicaSets.define(set);
+    eb.publish(replicasAddress + ".sync", new JsonObject().putArray("sets", new JsonArray().addObject(set)));
+
+    // a forwarded set is balanced here even if we don't think we lead, rather than bouncing between nodes
+    final String leader = leader();
+    if (forwarded || leader.equals(nodeId)) {
+      balanceReplicas(new Handler<JsonObject>() {
+        public void handle(JsonObject result) {
+          message.reply(result);
+        }
+      });
+      return;
+    }
+
+    eb.sendWithTimeout(nodeAddress(leader) + ".replicas", set.copy().putBoolean("forwarded", true), forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+      public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+        if (asyncResult.succeeded()) {
+          message.reply(asyncResult.result().body());
+        } else {
+          sendError(message, "no reply from leader " + leader + ": " + asyncResult.cause().getMessage());
+        }
+      }
+    });
+  }
+
+  /*
+   * The node which keeps the replica counts, the live node with the lowest nodeId. Every node derives it from
+   * the same load announcements, so they agree once those have settled after a node joins or leaves.
+   */
+  private String leader() {
+    Set<String> live = placement.liveNodes(System.currentTimeMillis());
+    return live.isEmpty() ? nodeId : live.iterator().next();
+  }
+
+  // Runs a replica pass, or if one is running, the one after it, which sees whatever changed meanwhile
+  private void balanceReplicas(Handler<JsonObject> resultHandler) {
+    balanceWaiters.add(resultHandler);
+    if (!balancing) {
+      nextBalance();
+    }
+  }
+
+  private void nextBalance() {
+    final List<Handler<JsonObject>> waiters = new ArrayList<>(balanceWaiters);
+    balanceWaiters.clear();
+    balancing = true;
+
+    final long started = metrics.start("replicas");
+    new ReplicaBalance(new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        metrics.end("replicas", null, started, "ok".equals(result.getString("status")));
+        if (result.getInteger("actions") > 0) {
+          reports.publish(result.copy().putString("action", "replicas"));
+        }
+        balancing = false;
+        for (Handler<JsonObject> waiter : waiters) {
+          waiter.handle(result);
+        }
+        if (!balanceWaiters.isEmpty()) {
+          nextBalance();
+        }
+      }
+    }).start();
+  }
+
+  // Xgrades a module back to the version and config its last xgrade replaced, as recorded in its DeploymentInfo
+  private void doRollback(final Message<JsonObject> message) {
+    final String moduleOwner = getMandatoryString("moduleOwner", message);
+    final String moduleName = getMandatoryString("moduleName", message);
+    if (moduleOwner == null || moduleName == null) {
+      return;
+    }
+
+    DeploymentInfo current = deployments.get(moduleOwner + "~" + moduleName);
+    if (current == null || current.previous == null) {
+      sendError(message, "no previous version of " + moduleOwner + "~" + moduleName + " to roll back to");
+      return;
+    }
+
+    final JsonObject spec = current.previous.copy().putBoolean("xgrade", true);
+    logger.info("Rolling " + current.getFullName() + " back to " + spec.getString("moduleVersion"));
+    admit(message, AdmissionController.DEPLOY, new AdmissionController.Request() {
+      public void run(final Handler<Void> done) {
+        deploy(spec, new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            done.handle(null);
+            message.reply(result.putString("moduleVersion", spec.getString("moduleVersion")));
+          }
+        });
+      }
+    });
+  }
+
+  // Upgrades a module on every node running it, a wave of nodes at a time, see Rollout
+  private void doRollout(final Message<JsonObject> message) {
+    JsonObject spec = message.body();
+
+    String invalid = validateSpec(spec, true);
+    if (invalid == null && waves(spec.getValue("waveSize"), 100, 1) < 1) {
+      invalid = "waveSize must be a positive number of nodes or a percentage like \"25%\"";
+    }
+    if (invalid == null && waves(spec.getValue("minAvailable"), 100, 0) < 0) {
+      invalid = "minAvailable must be a number of nodes or a percentage like \"75%\"";
+    }
+    Object canary = spec.getValue("canary");
+    if (invalid == null && canary != null && (!(canary instanceof JsonObject) || ((JsonObject) canary).getString("errorAddress") == null)) {
+      invalid = "canary must be an object with an errorAddress";
+    }
+    if (invalid == null && canary != null && waves(((JsonObject) canary).getValue("nodes"), 100, 1) < 1) {
+      invalid = "canary nodes must be a positive number of nodes or a percentage like \"5%\"";
+    }
+    if (invalid != null) {
+      logger.error(invalid);
+      sendError(message, invalid);
+      return;
+    }
+
+    final long started = metrics.start("rollout");
+    final String module = spec.getString("moduleOwner") + "~" + spec.getString("moduleName");
+    new Rollout(spec, new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        metrics.end("rollout", module, started, "ok".equals(result.getString("status")));
+        reports.publish(result.copy().putString("action", "rollout"));
+        message.reply(result);
+      }
+    }).start();
+  }
+
+  // A number of nodes given as a count or as a percentage of `total`, rounded up, `def` if not given, -1 if invalid
+  private static int waves(Object value, int total, int def) {
+    if (value == null) {
+      return def;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).intValue() < 0 ? -1 : ((Number) value).intValue();
+    }
+    String text = value.toString().trim();
+    if (text.endsWith("%")) {
+      try {
+        double percent = Double.parseDouble(text.substring(0, text.length() - 1));
+        return percent < 0 ? -1 : (int) Math.ceil(total * percent / 100.0);
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  // Announces our inventory after `delay` ms, and schedules the next one `interval` ms later give or take `jitter`
+  private void scheduleAnnouncement(final long interval, final double jitter, double delay) {
+    vertx.setTimer(Math.max(1, (long) delay), new Handler<Long>() {
+      public void handle(Long timerID) {
+        // resource figures change with every sample, announcing them would make every announcement a delta
+        JsonObject announcement = inventory.next(auditReport(false).getArray("modules"));
+        if (announcement != null) {
+          eb.publish(inventoryAddress, announcement);
+        }
+        scheduleAnnouncement(interval, jitter, interval * (1 + jitter * (2 * random.nextDouble() - 1)));
+      }
+    });
+  }
+
+  // The report of our own deployments, as answered to an audit, optionally with their last resource sample
+  private JsonObject auditReport(boolean withResources) {
+
+    // Module stack to hold the contents of our deployments in Json format
+    JsonArray modulesJson = new JsonArray();
+
+    // Go through the deployments and place each one onto the module stack
+    for (DeploymentInfo deploymentInfo : deployments.values()) {
+      JsonObject moduleJson = new JsonObject()
+                                .putString("name", deploymentInfo.getFullName())
+                                .putString("moduleOwner", deploymentInfo.moduleOwner)
+                                .putString("moduleName", deploymentInfo.moduleName)
+                                .putString("moduleVersion", deploymentInfo.moduleVersion)
+                                .putString("deploymentID", deploymentInfo.deploymentID)
+                                .putNumber("instances", deploymentInfo.instances)
+                                .putString("state", deploymentInfo.state.name())
+                                .putString("configHash", deploymentInfo.configHash);
+      if (deploymentInfo.previous != null) {
+        moduleJson.putString("previousVersion", deploymentInfo.previous.getString("moduleVersion"));
+      }
+      if (withResources && deploymentInfo.resources != null) {
+        moduleJson.putObject("resources", deploymentInfo.resources);
+      }
+      modulesJson.addObject(moduleJson);
+    }
+
+    return new JsonObject()
                     .putString("action", "report")
-                    .putObject("modules", modulesJson);
+                    .putString("node", nodeId)
+                    .putArray("modules", modulesJson);
+  }
 
-    eb.publish(reportAddress, jsonReport);
+  /*
+   * Deploys the modules of a stack, each one as soon as everything it depends on is up, so independent branches
+   * of the graph are deployed in parallel, up to batchConcurrency at a time. The modules depending on one
+   * which failed are skipped. A teardown runs the graph backwards, undeploying a module once every module
+   * depending on it is gone, and keeping those a module still running depends on.
+   */
+  private final class StackRun {
+    private final DeploymentGraph graph;
+    private final boolean teardown;
+    private final Handler<JsonObject> doneHandler;
+    private final Map<String, Integer> waitingOn = new HashMap<>();
+    private final List<String> ready = new ArrayList<>();
+    private final Set<String> skipped = new HashSet<>();
+    private final JsonArray results = new JsonArray();
+    private int running = 0;
+    private int completed = 0;
+    private int failed = 0;
+
+    private StackRun(DeploymentGraph graph, boolean teardown, Handler<JsonObject> doneHandler) {
+      this.graph = graph;
+      this.teardown = teardown;
+      this.doneHandler = doneHandler;
+    }
 
-    sendStatus("ok", message, jsonReport);
+    // the modules which have to be done before `key` can go
+    private Set<String> before(String key) {
+      return teardown ? graph.dependents(key) : graph.dependencies(key);
+    }
+
+    // the modules waiting for `key`
+    private Set<String> after(String key) {
+      return teardown ? graph.dependencies(key) : graph.dependents(key);
+    }
+
+    void start() {
+      for (String key : graph.modules()) {
+        waitingOn.put(key, before(key).size());
+        if (before(key).isEmpty()) {
+          ready.add(key);
+        }
+      }
+      if (graph.modules().isEmpty()) {
+        finish();
+        return;
+      }
+      launch();
+    }
+
+    private void launch() {
+      // deploy() may complete synchronously, so take each module off the ready list before starting it
+      while (running < batchConcurrency && !ready.isEmpty()) {
+        final String key = ready.remove(0);
+        final JsonObject spec = graph.spec(key);
+        running++;
+
+        Handler<JsonObject> handler = new Handler<JsonObject>() {
+          public void handle(JsonObject result) {
+            running--;
+            completed++;
+            results.addObject(result.putString("module", key + "~" + spec.getString("moduleVersion")));
+
+            if ("ok".equals(result.getString("status"))) {
+              for (String next : after(key)) {
+                int remaining = waitingOn.get(next) - 1;
+                waitingOn.put(next, remaining);
+                if (remaining == 0 && !skipped.contains(next)) {
+                  ready.add(next);
+                }
+              }
+            } else {
+              failed++;
+              skip(key, (teardown ? "undeploy of " : "deploy of ") + key + " failed");
+            }
+
+            if (completed + skipped.size() == graph.modules().size()) {
+              finish();
+            } else {
+              launch();
+            }
+          }
+        };
+
+        admitted(teardown, spec, handler);
+      }
+    }
+
+    // Skips everything waiting on `key`, directly or not
+    private void skip(String key, String reason) {
+      for (String next : after(key)) {
+        if (skipped.add(next)) {
+          results.addObject(new JsonObject()
+                                .putString("module", next + "~" + graph.spec(next).getString("moduleVersion"))
+                                .putString("status", "skipped")
+                                .putString("message", reason));
+          skip(next, reason);
+        }
+      }
+    }
+
+    private void finish() {
+      int total = graph.modules().size();
+      int done = total - failed - skipped.size();
+
+      JsonArray levels = new JsonArray();
+      List<List<String>> order = graph.levels();
+      if (teardown) {
+        Collections.reverse(order);
+      }
+      for (List<String> level : order) {
+        levels.addArray(new JsonArray(level.toArray()));
+      }
 
+      doneHandler.handle(new JsonObject()
+                             .putString("status", done == total ? "ok" : "error")
+                             .putString("message", done + " of " + total + " modules " + (teardown ? "undeployed" : "deployed"))
+                             .putNumber("failed", failed)
+                             .putNumber("skipped", skipped.size())
+                             .putArray("levels", levels)
+                             .putArray("results", results));
+    }
+  }
+
+  /*
+   * A rolling upgrade of one module across the cluster.
+   *
+   * A cluster audit finds the nodes running any version of the module, those not already running the requested
+   * version and config are upgraded with an xgrade deploy sent to their node address, `waveSize` nodes at a
+   * time. Each wave waits for every node's reply before the next starts, `wavePause` ms later. The rollout stops
+   * once more than `maxFailures` nodes have failed, leaving the rest untouched.
+   *
+   * `minAvailable` is the capacity floor, the number of nodes which must be running the module at any time.
+   * A stop-start xgrade takes the module down on a node while it upgrades, so with stop-start a wave is shrunk
+   * to keep the floor, and a node whose upgrade failed no longer counts as running it. A start-stop xgrade keeps
+   * the old version up until the new one is, so it never lowers capacity.
+   */
+  private final class Rollout {
+    private final JsonObject spec;
+    private final Handler<JsonObject> doneHandler;
+    private final boolean stopStart;
+    private final int maxFailures;
+    private final long wavePause;
+    private final Object waveSizeValue; // a count or percentage, resolved once we know how many nodes run it
+    private final Object minAvailableValue;
+    private final JsonObject canary; // null unless the first wave is a canary, see bake()
+    private final List<String> pending = new ArrayList<>();
+    private final JsonObject results = new JsonObject();
+    private final JsonArray waves = new JsonArray();
+    private int waveSize;
+    private int floor;
+    private int running; // nodes serving the module right now, in any version
+    private int targets;
+    private int failed = 0;
+    private int canarySize;
+    private int errors = 0;
+    private long bakeTimerID = -1; // -1 until the bake period has started
+
+    private Rollout(JsonObject request, Handler<JsonObject> doneHandler) {
+      this.spec = new JsonObject()
+                      .putString("moduleOwner", request.getString("moduleOwner"))
+                      .putString("moduleName", request.getString("moduleName"))
+                      .putString("moduleVersion", request.getString("moduleVersion"))
+                      .putObject("moduleConfig", request.getObject("moduleConfig"))
+                      .putBoolean("xgrade", true)
+                      .putString("xgradeStrategy", request.getString("xgradeStrategy", xgradeStrategy));
+      if (request.getValue("instances") != null) {
+        spec.putValue("instances", request.getValue("instances"));
+      }
+      if (request.getObject("readiness") != null) {
+        // a node only counts as upgraded once the new version is ready
+        spec.putObject("readiness", request.getObject("readiness"));
+      }
+      if (request.getValue("correlationId") != null) {
+        // so the traces of every node's upgrade can be found together
+        spec.putValue("correlationId", request.getValue("correlationId"));
+      }
+      this.stopStart = XGRADE_STOP_START.equals(spec.getString("xgradeStrategy"));
+      this.maxFailures = request.getInteger("maxFailures", 0);
+      this.wavePause = request.getLong("wavePause", 0);
+      this.waveSizeValue = request.getValue("waveSize");
+      this.minAvailableValue = request.getValue("minAvailable");
+      this.canary = request.getObject("canary");
+      this.doneHandler = doneHandler;
+    }
+
+    void start() {
+      final String configHash = ConfigHash.of(spec.getObject("moduleConfig"));
+
+      new ClusterAudit(clusterAuditTimeout, new Handler<JsonObject>() {
+        public void handle(JsonObject inventory) {
+          if (!inventory.getBoolean("complete", false)) {
+            // a node we didn't hear from may be running the module, we can't keep the floor without knowing
+            finish("error", "cluster audit incomplete, missing nodes " + inventory.getArray("missing").encode());
+            return;
+          }
+
+          JsonObject nodes = inventory.getObject("nodes");
+          for (String node : new TreeSet<>(nodes.getFieldNames())) {
+            for (Object element : nodes.getObject(node).getArray("modules")) {
+              JsonObject deployed = (JsonObject) element;
+              if (!spec.getString("moduleOwner").equals(deployed.getString("moduleOwner"))
+                  || !spec.getString("moduleName").equals(deployed.getString("moduleName"))) {
+                continue;
+              }
+              running++;
+              if (spec.getString("moduleVersion").equals(deployed.getString("moduleVersion"))
+                  && configHash.equals(deployed.getString("configHash"))) {
+                results.putObject(node, new JsonObject().putString("status", "ok").putString("message", "already current"));
+              } else {
+                pending.add(node);
+              }
+            }
+          }
+
+          targets = pending.size();
+          waveSize = waves(waveSizeValue, running, 1);
+          floor = waves(minAvailableValue, running, 0);
+          if (canary != null) {
+            canarySize = waves(canary.getValue("nodes"), running, 1);
+          }
+          logger.info("Rolling out " + spec.getString("moduleVersion") + " of " + spec.getString("moduleOwner") + "~"
+                      + spec.getString("moduleName") + " to " + targets + " of " + running + " nodes, waves of "
+                      + waveSize + ", keeping " + floor + " available");
+
+          if (running < floor) {
+            finish("error", "only " + running + " nodes run the module, below minAvailable " + floor);
+            return;
+          }
+          nextWave();
+        }
+      }).start();
+    }
+
+    private void nextWave() {
+      if (pending.isEmpty()) {
+        finish(failed == 0 ? "ok" : "error", (targets - failed) + " of " + targets + " nodes upgraded");
+        return;
+      }
+
+      int size = Math.min(canary != null && waves.size() == 0 ? canarySize : waveSize, pending.size());
+      if (stopStart) {
+        // every node of the wave is down while it upgrades
+        size = Math.min(size, running - floor);
+        if (size < 1) {
+          finish("error", "stopped to keep minAvailable " + floor + ", " + running + " nodes are running the module");
+          return;
+        }
+      }
+
+      final List<String> wave = new ArrayList<>(pending.subList(0, size));
+      pending.subList(0, size).clear();
+      final JsonArray waveJson = new JsonArray();
+      for (String node : wave) {
+        waveJson.addString(node);
+      }
+      waves.addArray(waveJson);
+      logger.info("Rollout wave " + waves.size() + ": " + waveJson.encode());
+
+      final int[] remaining = {wave.size()};
+      for (final String node : wave) {
+        eb.sendWithTimeout(nodeAddress(node) + ".deploy", spec, forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+          public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+            JsonObject result = asyncResult.succeeded()
+                                ? asyncResult.result().body()
+                                : errorResult("no reply from node: " + asyncResult.cause().getMessage());
+            results.putObject(node, result);
+            if (!"ok".equals(result.getString("status"))) {
+              failed++;
+              if (stopStart) {
+                // stop-start took the old version down, and nothing came up in its place
+                running--;
+              }
+            }
+
+            if (--remaining[0] == 0) {
+              waveDone(waveJson);
+            }
+          }
+        });
+      }
+    }
+
+    private void waveDone(JsonArray wave) {
+      reports.publish(new JsonObject()
+                          .putString("action", "rollout-wave")
+                          .putString("node", nodeId)
+                          .putString("module", spec.getString("moduleOwner") + "~" + spec.getString("moduleName") + "~" + spec.getString("moduleVersion"))
+                          .putNumber("wave", waves.size())
+                          .putArray("nodes", wave)
+                          .putNumber("failed", failed));
+
+      if (failed > maxFailures) {
+        String reason = "stopped after " + failed + " failed nodes, more than maxFailures " + maxFailures;
+        if (canary != null && waves.size() == 1) {
+          rollBack(wave, reason);
+        } else {
+          finish("error", reason);
+        }
+        return;
+      }
+      if (canary != null && waves.size() == 1) {
+        bake(wave);
+        return;
+      }
+      if (wavePause > 0 && !pending.isEmpty()) {
+        vertx.setTimer(wavePause, new Handler<Long>() {
+          public void handle(Long timerID) {
+            nextWave();
+          }
+        });
+      } else {
+        nextWave();
+      }
+    }
+
+    /*
+     * Watches the canary's errorAddress for the bake period, counting every message on it except those naming
+     * a node which isn't a canary. Too many errors roll the canary nodes back and end the rollout, as soon as
+     * they are counted, otherwise the rollout carries on with the remaining nodes once the bake period is up.
+     */
+    private void bake(final JsonArray wave) {
+      final String errorAddress = canary.getString("errorAddress");
+      final long bakeTime = canary.getLong("bake", 60000);
+      final int maxErrors = canary.getInteger("maxErrors", 0);
+
+      final Handler<Message<Object>> counter = new Handler<Message<Object>>() {
+        public void handle(Message<Object> error) {
+          Object body = error.body();
+          if (body instanceof JsonObject && ((JsonObject) body).getString("node") != null
+              && !wave.contains(((JsonObject) body).getString("node"))) {
+            return;
+          }
+          if (++errors > maxErrors) {
+            if (bakeTimerID != -1) {
+              vertx.cancelTimer(bakeTimerID);
+            }
+            eb.unregisterHandler(errorAddress, this);
+            rollBack(wave, "canary failed with " + errors + " errors on " + errorAddress + ", more than maxErrors " + maxErrors);
+          }
+        }
+      };
+
+      // the bake period only starts once the registration has reached the other nodes, or the canaries'
+      // first errors could go unheard
+      eb.registerHandler(errorAddress, counter, new Handler<AsyncResult<Void>>() {
+        public void handle(AsyncResult<Void> registered) {
+          if (errors > maxErrors) {
+            // the counter already rolled back
+            return;
+          }
+          if (registered.failed()) {
+            eb.unregisterHandler(errorAddress, counter);
+            rollBack(wave, "unable to watch " + errorAddress + " for canary errors: " + registered.cause());
+            return;
+          }
+          logger.info("Baking canary " + wave.encode() + " for " + bakeTime + "ms, watching " + errorAddress);
+          bakeTimerID = vertx.setTimer(Math.max(1, bakeTime), new Handler<Long>() {
+            public void handle(Long timerID) {
+              eb.unregisterHandler(errorAddress, counter);
+              logger.info("Canary passed with " + errors + " errors, rolling out to the remaining nodes");
+              nextWave();
+            }
+          });
+        }
+      });
+    }
+
+    // Rolls the nodes of the wave which were upgraded back to their previous version, then ends the rollout
+    private void rollBack(JsonArray wave, final String reason) {
+      final List<String> upgraded = new ArrayList<>();
+      for (Object node : wave) {
+        if ("ok".equals(results.getObject((String) node).getString("status"))) {
+          upgraded.add((String) node);
+        }
+      }
+      if (upgraded.isEmpty()) {
+        finish("error", reason);
+        return;
+      }
+
+      logger.error(reason + ", rolling back " + upgraded);
+      final JsonObject request = new JsonObject()
+                                     .putString("moduleOwner", spec.getString("moduleOwner"))
+                                     .putString("moduleName", spec.getString("moduleName"));
+      final int[] remaining = {upgraded.size()};
+      final int[] rolledBack = {0};
+      for (final String node : upgraded) {
+        eb.sendWithTimeout(nodeAddress(node) + ".rollback", request, forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+          public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+            JsonObject result = asyncResult.succeeded()
+                                ? asyncResult.result().body()
+                                : errorResult("no reply from node: " + asyncResult.cause().getMessage());
+            results.getObject(node).putObject("rollback", result);
+            if ("ok".equals(result.getString("status"))) {
+              rolledBack[0]++;
+            }
+            if (--remaining[0] == 0) {
+              finish("error", reason + ", rolled back " + rolledBack[0] + " of " + upgraded.size() + " canary nodes");
+            }
+          }
+        });
+      }
+    }
+
+    private void finish(String status, String message) {
+      JsonArray skipped = new JsonArray();
+      for (String node : pending) {
+        skipped.addString(node);
+      }
+      doneHandler.handle(new JsonObject()
+                             .putString("status", status)
+                             .putString("message", message)
+                             .putString("module", spec.getString("moduleOwner") + "~" + spec.getString("moduleName") + "~" + spec.getString("moduleVersion"))
+                             .putNumber("failed", failed)
+                             .putNumber("errors", errors)
+                             .putArray("waves", waves)
+                             .putObject("results", results)
+                             .putArray("skipped", skipped));
+    }
+  }
+
+  /*
+   * A replica pass. Audits the cluster, plans what it takes to bring every replica set to its count and sends
+   * the deploys and undeploys to the nodes concerned, all at once as they are on different nodes.
+   */
+  private final class ReplicaBalance {
+    private final Handler<JsonObject> doneHandler;
+    private final JsonObject sets = new JsonObject();
+    private final JsonArray results = new JsonArray();
+    private boolean complete;
+    private int remaining;
+    private int failed = 0;
+
+    private ReplicaBalance(Handler<JsonObject> doneHandler) {
+      this.doneHandler = doneHandler;
+    }
+
+    void start() {
+      new ClusterAudit(clusterAuditTimeout, new Handler<JsonObject>() {
+        public void handle(JsonObject inventory) {
+          complete = inventory.getBoolean("complete", false);
+          List<JsonObject> actions = replicaSets.plan(inventory, placement, System.currentTimeMillis(), sets);
+          remaining = actions.size();
+          if (remaining == 0) {
+            finish();
+            return;
+          }
+
+          for (final JsonObject action : actions) {
+            final String node = action.getString("node");
+            final String operation = action.getString("operation");
+            logger.info("Replica pass: " + operation + " " + ReplicaSets.key(action.getObject("spec")) + " on node " + node);
+            eb.sendWithTimeout(nodeAddress(node) + "." + operation, action.getObject("spec"), forwardTimeout, new Handler<AsyncResult<Message<JsonObject>>>() {
+              public void handle(AsyncResult<Message<JsonObject>> asyncResult) {
+                JsonObject result = asyncResult.succeeded()
+                                    ? asyncResult.result().body().copy()
+                                    : errorResult("no reply from node: " + asyncResult.cause().getMessage());
+                if (!"ok".equals(result.getString("status"))) {
+                  failed++;
+                }
+                results.addObject(result.putString("operation", operation).putString("node", node));
+                if (--remaining == 0) {
+                  finish();
+                }
+              }
+            });
+          }
+        }
+      }).start();
+    }
+
+    private void finish() {
+      int missing = 0;
+      for (String key : sets.getFieldNames()) {
+        missing += sets.getObject(key).getInteger("short");
+      }
+
+      String message = (results.size() - failed) + " of " + results.size() + " actions applied";
+      if (missing > 0) {
+        message += ", " + missing + " replicas short for lack of eligible nodes";
+      }
+      if (!complete) {
+        message += ", cluster audit incomplete so no surplus was removed";
+      }
+      doneHandler.handle(new JsonObject()
+                             .putString("status", failed == 0 && missing == 0 ? "ok" : "error")
+                             .putString("message", message)
+                             .putString("leader", nodeId)
+                             .putBoolean("complete", complete)
+                             .putNumber("actions", results.size())
+                             .putNumber("failed", failed)
+                             .putObject("sets", sets)
+                             .putArray("results", results));
+    }
+  }
+
+  /*
+   * Publishes an audit request to every Deployer in the cluster and gathers their reports on a private address
+   * until either every live node has answered or the deadline passes, then hands the merged inventory to doneHandler.
+   * Live nodes, as known from their load announcements, which haven't answered by then are listed as missing.
+   * Without a view of the live nodes, before any announcement has arrived, there is no telling when everyone has
+   * answered, so the audit gathers until the deadline and reports itself incomplete.
+   */
+  private final class ClusterAudit implements Handler<Message<JsonObject>> {
+    private final long timeout;
+    private final Handler<JsonObject> doneHandler;
+    private final String gatherAddress = nodeAddress(nodeId) + ".audit.gather." + UUID.randomUUID().toString();
+    private final Set<String> expected = new HashSet<>(placement.liveNodes(System.currentTimeMillis()));
+    private final boolean liveNodesKnown = !expected.isEmpty();
+    private final JsonObject nodesJson = new JsonObject();
+    private final Set<String> answered = new HashSet<>();
+    private long timerID;
+    private boolean finished = false;
+
+    private ClusterAudit(long timeout, Handler<JsonObject> doneHandler) {
+      this.timeout = timeout;
+      this.doneHandler = doneHandler;
+      // we answer our own scatter, whether or not our load announcement has come round yet
+      expected.add(nodeId);
+    }
+
+    void start() {
+      timerID = vertx.setTimer(timeout, new Handler<Long>() {
+        public void handle(Long timerID) {
+          finish();
+        }
+      });
+      // on a clustered event bus the registration takes a moment to reach the other nodes, and replies sent
+      // before it has would be lost, so only ask once it has
+      eb.registerHandler(gatherAddress, this, new Handler<AsyncResult<Void>>() {
+        public void handle(AsyncResult<Void> registered) {
+          if (finished) {
+            return;
+          }
+          if (registered.failed()) {
+            logger.error("unable to gather a cluster audit on " + gatherAddress + ": " + registered.cause());
+            vertx.cancelTimer(timerID);
+            finish();
+            return;
+          }
+          eb.publish(auditAddress + ".scatter", new JsonObject().putString("replyTo", gatherAddress));
+        }
+      });
+    }
+
+    public void handle(Message<JsonObject> report) {
+      String node = report.body().getString("node");
+      if (finished || node == null || !answered.add(node)) {
+        return;
+      }
+      nodesJson.putObject(node, new JsonObject().putArray("modules", report.body().getArray("modules")));
+
+      if (liveNodesKnown && answered.containsAll(expected)) {
+        vertx.cancelTimer(timerID);
+        finish();
+      }
+    }
+
+    private void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      eb.unregisterHandler(gatherAddress, this);
+
+      JsonArray missing = new JsonArray();
+      for (String node : expected) {
+        if (!answered.contains(node)) {
+          missing.addString(node);
+        }
+      }
+
+      doneHandler.handle(new JsonObject()
+                            .putString("action", "cluster-report")
+                            .putBoolean("complete", liveNodesKnown && missing.size() == 0)
+                            .putNumber("answered", answered.size())
+                            .putArray("missing", missing)
+                            .putObject("nodes", nodesJson));
+    }
   }
 
 }
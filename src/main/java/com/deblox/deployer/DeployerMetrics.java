@@ -0,0 +1,124 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/*
+ * Latency histograms and counters of the Deployer's operations, overall and per module, plus the number of
+ * operations in flight. Latencies are in milliseconds, measured from the request arriving to its reply, so
+ * they include any time spent queued behind other operations on the same module.
+ *
+ * Operations start and end in handlers on the Deployer's event loop, so the counters and histograms are
+ * plain fields rather than atomics.
+ */
+final class DeployerMetrics {
+
+  private static final class OperationStats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    long succeeded = 0;
+    long failed = 0;
+
+    void record(long millis, boolean ok) {
+      latency.record(millis);
+      if (ok) {
+        succeeded++;
+      } else {
+        failed++;
+      }
+    }
+
+    JsonObject toJson() {
+      return new JsonObject()
+                  .putNumber("succeeded", succeeded)
+                  .putNumber("failed", failed)
+                  .putObject("latency", latency.toJson());
+    }
+  }
+
+  // operation -> stats
+  private final Map<String, OperationStats> overall = new TreeMap<>();
+  // owner~name -> operation -> stats
+  private final Map<String, Map<String, OperationStats>> modules = new HashMap<>();
+  // operation -> number in flight
+  private final Map<String, Integer> inFlight = new TreeMap<>();
+
+  // Marks the start of an operation, returns the start time to hand back to end()
+  long start(String operation) {
+    Integer current = inFlight.get(operation);
+    inFlight.put(operation, current == null ? 1 : current + 1);
+    return System.nanoTime();
+  }
+
+  // Records a finished operation, module may be null if the request didn't get as far as naming one
+  void end(String operation, String module, long started, boolean ok) {
+    long millis = (System.nanoTime() - started) / 1000000;
+
+    Integer current = inFlight.get(operation);
+    inFlight.put(operation, current == null ? 0 : Math.max(0, current - 1));
+
+    stats(overall, operation).record(millis, ok);
+
+    if (module != null) {
+      Map<String, OperationStats> moduleStats = modules.get(module);
+      if (moduleStats == null) {
+        moduleStats = new TreeMap<>();
+        modules.put(module, moduleStats);
+      }
+      stats(moduleStats, operation).record(millis, ok);
+    }
+  }
+
+  JsonObject toJson(boolean includeModules) {
+    JsonObject json = new JsonObject()
+                          .putObject("inFlight", new JsonObject(new HashMap<String, Object>(inFlight)))
+                          .putObject("operations", toJson(overall));
+
+    if (includeModules) {
+      JsonObject modulesJson = new JsonObject();
+      for (Map.Entry<String, Map<String, OperationStats>> entry : new TreeMap<>(modules).entrySet()) {
+        modulesJson.putObject(entry.getKey(), toJson(entry.getValue()));
+      }
+      json.putObject("modules", modulesJson);
+    }
+    return json;
+  }
+
+  private static JsonObject toJson(Map<String, OperationStats> stats) {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+      json.putObject(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+
+  private static OperationStats stats(Map<String, OperationStats> stats, String operation) {
+    OperationStats operationStats = stats.get(operation);
+    if (operationStats == null) {
+      operationStats = new OperationStats();
+      stats.put(operation, operationStats);
+    }
+    return operationStats;
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/*
+ * The modules of a stack and the order they depend on each other in. Modules are identified by owner~name,
+ * each may list the modules it needs running first in `dependsOn`.
+ */
+final class DeploymentGraph {
+
+  // owner~name -> deploy spec, in the order of the request
+  private final Map<String, JsonObject> specs = new LinkedHashMap<>();
+  // owner~name -> the modules of the stack it depends on
+  private final Map<String, Set<String>> dependencies = new LinkedHashMap<>();
+  // owner~name -> the modules of the stack depending on it
+  private final Map<String, Set<String>> dependents = new LinkedHashMap<>();
+  // owner~name -> modules outside the stack it depends on
+  private final Map<String, Set<String>> external = new LinkedHashMap<>();
+
+  private DeploymentGraph() {
+  }
+
+  /*
+   * Builds the graph of a stack's `modules`, throwing an IllegalArgumentException if a module is listed twice
+   * or the dependencies form a cycle. Dependencies on modules outside the stack are allowed here, the caller
+   * decides whether they are met, see external().
+   */
+  static DeploymentGraph of(JsonArray modules) {
+    DeploymentGraph graph = new DeploymentGraph();
+
+    for (Object element : modules) {
+      if (!(element instanceof JsonObject)) {
+        throw new IllegalArgumentException("modules must be deploy specs");
+      }
+      JsonObject spec = (JsonObject) element;
+      String key = key(spec);
+      if (graph.specs.put(key, spec) != null) {
+        throw new IllegalArgumentException("duplicate module " + key);
+      }
+      graph.dependencies.put(key, new LinkedHashSet<String>());
+      graph.dependents.put(key, new LinkedHashSet<String>());
+      graph.external.put(key, new LinkedHashSet<String>());
+    }
+
+    for (Map.Entry<String, JsonObject> entry : graph.specs.entrySet()) {
+      for (Object dependency : entry.getValue().getArray("dependsOn", new JsonArray())) {
+        String dependencyKey = String.valueOf(dependency);
+        if (dependencyKey.equals(entry.getKey())) {
+          throw new IllegalArgumentException(entry.getKey() + " depends on itself");
+        }
+        if (graph.specs.containsKey(dependencyKey)) {
+          graph.dependencies.get(entry.getKey()).add(dependencyKey);
+          graph.dependents.get(dependencyKey).add(entry.getKey());
+        } else {
+          graph.external.get(entry.getKey()).add(dependencyKey);
+        }
+      }
+    }
+
+    List<List<String>> levels = graph.levels();
+    int sorted = 0;
+    for (List<String> level : levels) {
+      sorted += level.size();
+    }
+    if (sorted < graph.specs.size()) {
+      List<String> cycle = new ArrayList<>(graph.specs.keySet());
+      for (List<String> level : levels) {
+        cycle.removeAll(level);
+      }
+      throw new IllegalArgumentException("dependency cycle between " + cycle);
+    }
+    return graph;
+  }
+
+  static String key(JsonObject spec) {
+    return spec.getString("moduleOwner") + "~" + spec.getString("moduleName");
+  }
+
+  Set<String> modules() {
+    return specs.keySet();
+  }
+
+  JsonObject spec(String key) {
+    return specs.get(key);
+  }
+
+  Set<String> dependencies(String key) {
+    return dependencies.get(key);
+  }
+
+  Set<String> dependents(String key) {
+    return dependents.get(key);
+  }
+
+  Set<String> external(String key) {
+    return external.get(key);
+  }
+
+  /*
+   * The modules grouped into levels, every module depending only on modules of earlier levels, by Kahn's
+   * algorithm. Modules on a cycle are left out.
+   */
+  List<List<String>> levels() {
+    Map<String, Integer> waitingOn = new LinkedHashMap<>();
+    List<String> level = new ArrayList<>();
+    for (String key : specs.keySet()) {
+      waitingOn.put(key, dependencies.get(key).size());
+      if (dependencies.get(key).isEmpty()) {
+        level.add(key);
+      }
+    }
+
+    List<List<String>> levels = new ArrayList<>();
+    while (!level.isEmpty()) {
+      levels.add(level);
+      List<String> next = new ArrayList<>();
+      for (String key : level) {
+        for (String dependent : dependents.get(key)) {
+          int remaining = waitingOn.get(dependent) - 1;
+          waitingOn.put(dependent, remaining);
+          if (remaining == 0) {
+            next.add(dependent);
+          }
+        }
+      }
+      level = next;
+    }
+    return levels;
+  }
+
+}
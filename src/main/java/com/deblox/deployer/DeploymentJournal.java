@@ -0,0 +1,221 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * Durable record of the modules a Deployer is running, so it can bring them back after a restart.
+ *
+ * Every deploy and undeploy is appended to a journal of JSON lines. Appends are buffered and written and
+ * fsync'ed as one batch every flush interval, on a thread of the journal's own, so the event loop never waits
+ * on the disk. Compaction writes the full set of deployments to a snapshot, atomically replacing the previous
+ * one, and truncates the journal. Recovery replays the journal on top of the snapshot, the last record for a
+ * module wins, so replaying records which are already part of the snapshot is harmless.
+ */
+final class DeploymentJournal {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File journalFile;
+  private final File snapshotFile;
+  private final long flushInterval;
+  private final int compactThreshold;
+  private final Logger logger;
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("deployer-journal"));
+
+  // guarded by itself, lines appended but not yet written
+  private final List<String> buffer = new ArrayList<>();
+  private boolean flushScheduled = false;
+
+  // records since the last compaction, only touched from the event loop
+  private int records = 0;
+
+  DeploymentJournal(File dir, long flushInterval, int compactThreshold, Logger logger) {
+    this.journalFile = new File(dir, "deployments.journal");
+    this.snapshotFile = new File(dir, "deployments.snapshot");
+    this.flushInterval = flushInterval;
+    this.compactThreshold = compactThreshold;
+    this.logger = logger;
+  }
+
+  /*
+   * Reads the snapshot and replays the journal, returning the deploy specs of the recorded modules. This does
+   * blocking IO and is meant to be called once at startup. A torn last line, as left by a crash mid write, is
+   * skipped.
+   */
+  List<JsonObject> recover() throws IOException {
+    snapshotFile.getParentFile().mkdirs();
+
+    Map<String, JsonObject> specs = new LinkedHashMap<>();
+    if (snapshotFile.exists()) {
+      JsonObject snapshot = new JsonObject(new String(Files.readAllBytes(snapshotFile.toPath()), UTF8));
+      for (Object spec : snapshot.getArray("deployments", new JsonArray())) {
+        specs.put(key((JsonObject) spec), (JsonObject) spec);
+      }
+    }
+
+    if (journalFile.exists()) {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          JsonObject record;
+          try {
+            record = new JsonObject(line);
+          } catch (RuntimeException e) {
+            logger.error("skipping unreadable journal record: " + line);
+            continue;
+          }
+          if ("deploy".equals(record.getString("op"))) {
+            specs.put(record.getString("key"), record.getObject("spec"));
+          } else {
+            specs.remove(record.getString("key"));
+          }
+        }
+      }
+    }
+
+    return new ArrayList<>(specs.values());
+  }
+
+  void recordDeploy(JsonObject spec) {
+    append(new JsonObject().putString("op", "deploy").putString("key", key(spec)).putObject("spec", spec));
+  }
+
+  void recordUndeploy(String key) {
+    append(new JsonObject().putString("op", "undeploy").putString("key", key));
+  }
+
+  // true once enough records have built up since the last compaction that it is worth doing another
+  boolean compactionDue() {
+    return records >= compactThreshold;
+  }
+
+  /*
+   * Replaces the snapshot with `specs`, which must be every module deployed at the time of the call. Buffered
+   * records are already part of it and are dropped, records made after the call are journalled as usual.
+   */
+  void compact(Collection<JsonObject> specs) {
+    final JsonArray deployments = new JsonArray();
+    for (JsonObject spec : specs) {
+      deployments.addObject(spec);
+    }
+    synchronized (buffer) {
+      buffer.clear();
+    }
+    records = 0;
+
+    // runs after any flush already queued, which is what makes truncating the journal safe
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          File tmp = new File(snapshotFile.getPath() + ".tmp");
+          write(tmp, new JsonObject().putArray("deployments", deployments).encode() + "\n", false);
+          Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+          write(journalFile, "", false);
+        } catch (IOException e) {
+          logger.error("journal compaction failed", e);
+        }
+      }
+    });
+  }
+
+  // Writes out anything still buffered and stops the journal thread
+  void close() {
+    executor.execute(new Runnable() {
+      public void run() {
+        flush();
+      }
+    });
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void append(JsonObject record) {
+    records++;
+    synchronized (buffer) {
+      buffer.add(record.encode());
+      if (flushScheduled) {
+        return;
+      }
+      flushScheduled = true;
+    }
+    executor.schedule(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private void flush() {
+    StringBuilder batch = new StringBuilder();
+    synchronized (buffer) {
+      flushScheduled = false;
+      for (String line : buffer) {
+        batch.append(line).append('\n');
+      }
+      buffer.clear();
+    }
+    if (batch.length() == 0) {
+      return;
+    }
+    try {
+      write(journalFile, batch.toString(), true);
+    } catch (IOException e) {
+      logger.error("journal write failed", e);
+    }
+  }
+
+  private static void write(File file, String text, boolean append) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file, append)) {
+      out.write(text.getBytes(UTF8));
+      out.getChannel().force(false);
+    }
+  }
+
+  private static String key(JsonObject spec) {
+    return spec.getString("moduleOwner") + "~" + spec.getString("moduleName");
+  }
+
+}
@@ -0,0 +1,121 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+ * Builds a node's inventory announcements, the changes to its modules since the previous announcement.
+ *
+ * Every announcement carries a version, one more than the previous announcement's. A delta lists the modules
+ * added or changed and the owner~name of those removed since `baseVersion`, a snapshot lists every module. A
+ * listener applying deltas in order has the node's full inventory, one which missed a version waits for the
+ * next snapshot, or asks for one. Nothing is announced when nothing changed, unless a snapshot is due.
+ *
+ * The announced state and version are kept between calls without locking, next() and current() are only
+ * called from the announcement timer and inventory requests on the Deployer's event loop.
+ */
+final class InventoryAnnouncer {
+
+  private final String nodeId;
+  private final int snapshotEvery;
+
+  // owner~name -> module, as of the last announcement
+  private Map<String, JsonObject> announced = new HashMap<>();
+  private long version = 0;
+  private int sinceSnapshot = 0;
+
+  // a full snapshot goes out every `snapshotEvery` calls of next()
+  InventoryAnnouncer(String nodeId, int snapshotEvery) {
+    this.nodeId = nodeId;
+    this.snapshotEvery = Math.max(1, snapshotEvery);
+  }
+
+  // The announcement for the current `modules`, as listed in an audit report, or null if there is nothing to say
+  JsonObject next(JsonArray modules) {
+    Map<String, JsonObject> current = index(modules);
+
+    if (++sinceSnapshot >= snapshotEvery || version == 0) {
+      return snapshot(current);
+    }
+
+    JsonArray changed = new JsonArray();
+    for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+      JsonObject previous = announced.get(entry.getKey());
+      if (previous == null || !ConfigHash.canonical(previous).equals(ConfigHash.canonical(entry.getValue()))) {
+        changed.addObject(entry.getValue());
+      }
+    }
+    JsonArray removed = new JsonArray();
+    for (String key : announced.keySet()) {
+      if (!current.containsKey(key)) {
+        removed.addString(key);
+      }
+    }
+    if (changed.size() == 0 && removed.size() == 0) {
+      return null;
+    }
+
+    announced = current;
+    version++;
+    return new JsonObject()
+                .putString("action", "inventory")
+                .putString("type", "delta")
+                .putString("node", nodeId)
+                .putNumber("version", version)
+                .putNumber("baseVersion", version - 1)
+                .putArray("changed", changed)
+                .putArray("removed", removed);
+  }
+
+  // The full inventory as last announced, for a listener which lost track
+  JsonObject current() {
+    JsonArray modules = new JsonArray();
+    for (JsonObject module : announced.values()) {
+      modules.addObject(module);
+    }
+    return new JsonObject()
+                .putString("action", "inventory")
+                .putString("type", "snapshot")
+                .putString("node", nodeId)
+                .putNumber("version", version)
+                .putArray("modules", modules);
+  }
+
+  private JsonObject snapshot(Map<String, JsonObject> current) {
+    sinceSnapshot = 0;
+    announced = current;
+    version++;
+    return current();
+  }
+
+  private static Map<String, JsonObject> index(JsonArray modules) {
+    Map<String, JsonObject> index = new HashMap<>();
+    for (Object element : modules) {
+      JsonObject module = (JsonObject) element;
+      index.put(module.getString("moduleOwner") + "~" + module.getString("moduleName"), module);
+    }
+    return index;
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Handler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+ * Serializes asynchronous operations per key. Operations submitted under the same key run one at a time in
+ * submission order, each one starting only after the previous one has signalled completion, while operations
+ * under different keys are never held up by each other.
+ *
+ * The queues are plain collections, and an operation's done handler starts the next one, so operations must
+ * signal completion on the event loop they were submitted from, not on whatever thread finished their work.
+ */
+final class KeyedOperationQueue {
+
+  interface Operation {
+    // Run the operation, calling done exactly once when it has finished, successfully or not.
+    void run(Handler<Void> done);
+  }
+
+  // a key is present only while one of its operations is running, the deque holds the ones waiting behind it
+  private final Map<String, Deque<Operation>> queues = new HashMap<>();
+
+  void submit(String key, Operation operation) {
+    Deque<Operation> waiting = queues.get(key);
+    if (waiting != null) {
+      waiting.add(operation);
+      return;
+    }
+    queues.put(key, new ArrayDeque<Operation>());
+    run(key, operation);
+  }
+
+  // true while an operation for key is running or waiting
+  boolean isBusy(String key) {
+    return queues.containsKey(key);
+  }
+
+  // number of operations waiting behind the running one for key
+  int waiting(String key) {
+    Deque<Operation> waiting = queues.get(key);
+    return waiting == null ? 0 : waiting.size();
+  }
+
+  // number of keys with an operation in flight
+  int activeKeys() {
+    return queues.size();
+  }
+
+  /*
+   * Runs the operation, releasing its key should it throw, since it then can't be relied on to call done. The
+   * exception is passed on for the caller to fail the request with.
+   */
+  private void run(final String key, Operation operation) {
+    Handler<Void> done = new Handler<Void>() {
+      private boolean released = false;
+
+      public void handle(Void ignored) {
+        if (released) {
+          return;
+        }
+        released = true;
+
+        Operation next = queues.get(key).poll();
+        if (next == null) {
+          queues.remove(key);
+        } else {
+          run(key, next);
+        }
+      }
+    };
+
+    try {
+      operation.run(done);
+    } catch (RuntimeException e) {
+      done.handle(null);
+      throw e;
+    }
+  }
+
+}
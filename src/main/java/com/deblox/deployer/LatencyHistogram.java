@@ -0,0 +1,106 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonObject;
+
+
+/*
+ * A fixed size, log bucketed histogram of non negative values, typically latencies in milliseconds.
+ *
+ * Values below 16 are counted exactly, above that every power of two is split into 8 buckets, so a reported
+ * percentile is never more than 12.5% below the real value. Recording is a couple of shifts and an array
+ * increment, and the whole histogram is under 4KB no matter how many values it has seen.
+ */
+public final class LatencyHistogram {
+
+  private static final int EXACT = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = EXACT + (63 - 4) * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long min = Long.MAX_VALUE;
+  private long max = 0;
+
+  public synchronized void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[bucket(value)]++;
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public synchronized long count() {
+    return count;
+  }
+
+  // The lower bound of the bucket holding the given percentile, 0 < percentile <= 100, 0 if nothing was recorded
+  public synchronized long percentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        // the max is exact, so don't report past it
+        return Math.min(lowerBound(bucket), max);
+      }
+    }
+    return max;
+  }
+
+  public synchronized JsonObject toJson() {
+    return new JsonObject()
+                .putNumber("count", count)
+                .putNumber("min", count == 0 ? 0 : min)
+                .putNumber("mean", count == 0 ? 0 : (double) sum / count)
+                .putNumber("max", max)
+                .putNumber("p50", percentile(50))
+                .putNumber("p90", percentile(90))
+                .putNumber("p99", percentile(99))
+                .putNumber("p999", percentile(99.9));
+  }
+
+  private static int bucket(long value) {
+    if (value < EXACT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) ((value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return EXACT + (exponent - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long lowerBound(int bucket) {
+    if (bucket < EXACT) {
+      return bucket;
+    }
+    int exponent = (bucket - EXACT) / SUB_BUCKETS + 4;
+    int subBucket = (bucket - EXACT) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+  }
+
+}
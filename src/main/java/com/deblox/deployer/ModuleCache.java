@@ -0,0 +1,840 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/*
+ * Local cache of unpacked modules, kept in the platform's mods directory where the platform looks before it
+ * goes to the repositories, so a deploy of a cached module only has to start it.
+ *
+ * Prefetching resolves a module through the same repositories as the platform, `repos.txt`, checks the zip
+ * against the repository's SHA-1 where there is one, and unpacks it into place with an atomic rename, so
+ * neither the platform nor another Deployer sharing the directory ever sees half a module. Each cached module's
+ * unpacked content is hashed and checked again before it is deployed, a module which no longer matches is
+ * removed and left to the platform to resolve afresh.
+ *
+ * How deploys resolve modules depends on the resolution mode. With "platform", the default, a deploy of a
+ * module which isn't cached is left to the platform, which goes through the repositories one after the other.
+ * With "sequential" and "race" the cache resolves it first, either going through the repositories in order or
+ * asking all of them at once and taking the first valid zip. Prefetches always resolve through the cache,
+ * racing in "race" mode. Every repository has a circuit breaker, see RepositoryBreaker, so repositories which
+ * keep failing or answering slowly are skipped for a while.
+ *
+ * The cache is bounded in bytes and evicts the least recently used modules first, modules which are deployed,
+ * or which a deployed module includes, are never evicted. Only modules the cache put there or was asked to prefetch are managed, anything else in
+ * the mods directory is left alone.
+ *
+ * File work happens on a small pool of the cache's own, never on the event loop. The index itself is only
+ * touched from the owning verticle's event loop.
+ */
+final class ModuleCache {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String INDEX_FILE = ".deployer-cache.json";
+  private static final int TIMEOUT = 30000;
+
+  static final String RESOLUTION_PLATFORM = "platform";
+  static final String RESOLUTION_SEQUENTIAL = "sequential";
+  static final String RESOLUTION_RACE = "race";
+
+  private static final class Entry {
+    final long bytes;
+    final String hash; // of the unpacked content
+    long lastUsed;
+
+    Entry(long bytes, String hash, long lastUsed) {
+      this.bytes = bytes;
+      this.hash = hash;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  // the outcome of working on one module off the event loop
+  private static final class Fetched {
+    final String module;
+    final Entry entry; // null on failure
+    final String status; // "fetched", "cached" or "error"
+    final String message;
+
+    Fetched(String module, Entry entry, String status, String message) {
+      this.module = module;
+      this.entry = entry;
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  // a module zip downloaded from a repository
+  private static final class Download {
+    final String url;
+    final File zip;
+
+    Download(String url, File zip) {
+      this.url = url;
+      this.zip = zip;
+    }
+  }
+
+  // The modules deployed or being deployed right now, owner~name~version, asked for whenever the cache evicts
+  interface InUse {
+    Set<String> modules();
+  }
+
+  private final Vertx vertx;
+  private final File dir;
+  private final long maxBytes;
+  private final List<String> repos;
+  private final String resolution;
+  private final InUse inUse;
+  private final Logger logger;
+  private final ExecutorService executor;
+  private final ExecutorService raceExecutor; // one thread per repository being raced, grows as needed
+
+  // repository -> breaker, in the order of repos
+  private final Map<String, RepositoryBreaker> breakers = new LinkedHashMap<>();
+
+  // owner~name~version -> entry
+  private final Map<String, Entry> index = new HashMap<>();
+
+  // owner~name~version -> the modules its mod.json includes, which don't change for a given version
+  private final Map<String, List<String>> includes = new HashMap<>();
+
+  ModuleCache(Vertx vertx, File dir, long maxBytes, int threads, List<String> repos, String resolution,
+              int breakerFailures, long breakerOpenFor, long breakerSlowThreshold, InUse inUse, Logger logger) {
+    this.vertx = vertx;
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.repos = repos;
+    this.resolution = resolution;
+    this.inUse = inUse;
+    this.logger = logger;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, threads), DaemonThreads.named("deployer-module-cache"));
+    this.raceExecutor = Executors.newCachedThreadPool(DaemonThreads.named("deployer-repository-race"));
+    for (String repo : repos) {
+      breakers.put(repo, new RepositoryBreaker(repo, breakerFailures, breakerOpenFor, breakerSlowThreshold));
+    }
+    loadIndex();
+  }
+
+  // The mods directory the platform uses, see the vertx.mods system property
+  static File platformModsDir() {
+    return new File(System.getProperty("vertx.mods", "mods"));
+  }
+
+  // The repositories listed in the repos.txt on our classpath, in order
+  static List<String> readRepos() {
+    List<String> repos = new ArrayList<>();
+    InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream("repos.txt");
+    if (in == null) {
+      in = ModuleCache.class.getClassLoader().getResourceAsStream("repos.txt");
+    }
+    if (in == null) {
+      // the platform's own defaults
+      return Arrays.asList("mavenLocal:~/.m2/repository", "maven:http://repo2.maven.org/maven2",
+                           "maven:http://oss.sonatype.org/content/repositories/snapshots", "bintray:http://dl.bintray.com");
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          repos.add(line);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to read repos.txt", e);
+    }
+    return repos;
+  }
+
+  static boolean isModuleName(String module) {
+    return module != null && module.split("~").length == 3 && !module.contains("/") && !module.contains("..");
+  }
+
+  /*
+   * Called right before `module` is deployed. A cached module is checked against its hash first, and removed
+   * if it doesn't match. Unless the platform does the resolving, a module which isn't cached is fetched, if
+   * that fails the platform gets its turn regardless. done is called on the event loop, straight away when the
+   * platform resolves and the module isn't cached. The time spent verifying, downloading and unpacking is
+   * recorded in `trace`.
+   */
+  void checkout(final String module, final DeployTrace trace, final Handler<Void> done) {
+    final Entry entry = index.get(module);
+    final Context context = vertx.currentContext();
+
+    if (entry == null) {
+      if (RESOLUTION_PLATFORM.equals(resolution) || !isModuleName(module)) {
+        done.handle(null);
+        return;
+      }
+      executor.execute(new Runnable() {
+        public void run() {
+          final Fetched result = fetch(module, null, trace);
+          context.runOnContext(new Handler<Void>() {
+            public void handle(Void ignored) {
+              if (result.entry != null) {
+                index.put(module, result.entry);
+                // the module isn't among those deployed until the platform gets to start it
+                evict(module);
+                saveIndex();
+              } else {
+                logger.error("unable to resolve " + module + ", leaving it to the platform: " + result.message);
+              }
+              done.handle(null);
+            }
+          });
+        }
+      });
+      return;
+    }
+    entry.lastUsed = System.currentTimeMillis();
+
+    executor.execute(new Runnable() {
+      public void run() {
+        boolean intact;
+        long verifying = DeployTrace.begin();
+        try {
+          intact = entry.hash.equals(treeHash(new File(dir, module)));
+        } catch (IOException e) {
+          intact = false;
+        }
+        trace.end("verify", verifying);
+        if (!intact) {
+          // gone before the platform gets to deploy, or it would load the corrupt copy or half of it
+          logger.error("cached module " + module + " does not match its checksum, removing it");
+          discard(module);
+        }
+        final boolean matches = intact;
+        context.runOnContext(new Handler<Void>() {
+          public void handle(Void ignored) {
+            if (!matches) {
+              index.remove(module);
+            }
+            done.handle(null);
+          }
+        });
+      }
+    });
+  }
+
+  /*
+   * Makes sure every module in `modules` is unpacked in the cache, without starting any. Hands back one result
+   * per module, {module, status, message}, where status is "fetched", "cached" or "error". Modules in use are
+   * never evicted to make room.
+   */
+  void prefetch(final List<String> modules, final Handler<JsonArray> resultHandler) {
+    final Context context = vertx.currentContext();
+    final Fetched[] fetched = new Fetched[modules.size()];
+    final int[] remaining = {modules.size()};
+
+    if (modules.isEmpty()) {
+      resultHandler.handle(new JsonArray());
+      return;
+    }
+
+    for (int i = 0; i < modules.size(); i++) {
+      final int slot = i;
+      final String module = modules.get(i);
+      final Entry known = index.get(module);
+
+      executor.execute(new Runnable() {
+        public void run() {
+          final Fetched result = fetch(module, known, null);
+          context.runOnContext(new Handler<Void>() {
+            public void handle(Void ignored) {
+              fetched[slot] = result;
+              if (result.entry != null) {
+                index.put(module, result.entry);
+              } else {
+                index.remove(module);
+              }
+              if (--remaining[0] == 0) {
+                evict();
+                saveIndex();
+                JsonArray results = new JsonArray();
+                for (Fetched f : fetched) {
+                  results.addObject(new JsonObject()
+                                        .putString("module", f.module)
+                                        .putString("status", f.status)
+                                        .putString("message", f.message));
+                }
+                resultHandler.handle(results);
+              }
+            }
+          });
+        }
+      });
+    }
+  }
+
+  // total bytes of the modules in the cache
+  long size() {
+    long size = 0;
+    for (Entry entry : index.values()) {
+      size += entry.bytes;
+    }
+    return size;
+  }
+
+  // the circuit breaker state and latency of every repository
+  JsonArray repositoryStats() {
+    JsonArray stats = new JsonArray();
+    for (RepositoryBreaker breaker : breakers.values()) {
+      stats.addObject(breaker.toJson());
+    }
+    return stats;
+  }
+
+  void close() {
+    executor.shutdown();
+    raceExecutor.shutdownNow();
+  }
+
+  // Runs on the pool, resolves and unpacks a module unless an intact copy is already there, `trace` may be null
+  private Fetched fetch(String module, Entry known, DeployTrace trace) {
+    if (!isModuleName(module)) {
+      return new Fetched(module, null, "error", "not a module name, expected owner~name~version: " + module);
+    }
+    File target = new File(dir, module);
+    try {
+      if (target.isDirectory()) {
+        // ours and intact, or installed by the platform, either way it only needs indexing
+        long verifying = DeployTrace.begin();
+        String hash = treeHash(target);
+        span(trace, "verify", verifying);
+        if (known == null || known.hash.equals(hash)) {
+          return new Fetched(module, new Entry(treeSize(target), hash, System.currentTimeMillis()), "cached", "already cached");
+        }
+        logger.error("cached module " + module + " does not match its checksum, fetching it again");
+        delete(target);
+      }
+
+      long downloading = DeployTrace.begin();
+      Download download = RESOLUTION_RACE.equals(resolution) ? race(module) : inOrder(module);
+      span(trace, "download", downloading);
+      if (download == null) {
+        return new Fetched(module, null, "error", "module not found in any available repository");
+      }
+      long unpacking = DeployTrace.begin();
+      try {
+        unpack(module, download.zip, target);
+      } finally {
+        download.zip.delete();
+      }
+      Entry entry = new Entry(treeSize(target), treeHash(target), System.currentTimeMillis());
+      span(trace, "unpack", unpacking);
+      logger.info("fetched " + module + " from " + download.url);
+      return new Fetched(module, entry, "fetched", download.url);
+    } catch (IOException e) {
+      return new Fetched(module, null, "error", e.toString());
+    }
+  }
+
+  private static void span(DeployTrace trace, String phase, long begun) {
+    if (trace != null) {
+      trace.end(phase, begun);
+    }
+  }
+
+  // Tries the repositories one after the other, returns null if none of them has the module
+  private Download inOrder(String module) throws IOException {
+    for (String repo : repos) {
+      if (!breakers.get(repo).allow(System.currentTimeMillis())) {
+        continue;
+      }
+      try {
+        Download download = tryRepository(repo, module);
+        if (download != null) {
+          return download;
+        }
+      } catch (IOException e) {
+        logger.error("unable to fetch " + module + " from " + repo + ": " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  // Asks every available repository at once and takes the first valid zip, returns null if none has the module
+  private Download race(final String module) {
+    final Download[] winner = {null};
+    CompletionService<Download> racing = new ExecutorCompletionService<>(raceExecutor);
+    List<Future<Download>> futures = new ArrayList<>();
+
+    for (final String repo : repos) {
+      if (!breakers.get(repo).allow(System.currentTimeMillis())) {
+        continue;
+      }
+      futures.add(racing.submit(new Callable<Download>() {
+        public Download call() {
+          try {
+            Download download = tryRepository(repo, module);
+            synchronized (winner) {
+              if (download != null && winner[0] == null) {
+                winner[0] = download;
+                return download;
+              }
+            }
+            if (download != null) {
+              // too late
+              download.zip.delete();
+            }
+          } catch (IOException e) {
+            logger.error("unable to fetch " + module + " from " + repo + ": " + e.getMessage());
+          }
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          Download download = racing.take().get();
+          if (download != null) {
+            return download;
+          }
+        } catch (ExecutionException e) {
+          logger.error("unable to fetch " + module + ": " + e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the losers are left to finish in the background, interrupting them would trip their breakers for
+    // nothing, while those stuck on a slow repository should time out and trip its breaker
+    return null;
+  }
+
+  /*
+   * Downloads from one repository into a temporary zip, null if the repository doesn't have the module. Every
+   * attempt the breaker allowed is recorded with it, one which fails before it gets to the repository included,
+   * or a half open breaker would wait on its trial forever.
+   */
+  private Download tryRepository(String repo, String module) throws IOException {
+    RepositoryBreaker breaker = breakers.get(repo);
+    long start = System.currentTimeMillis();
+    File zip = null;
+    Download download = null;
+    try {
+      zip = File.createTempFile(module, ".zip");
+      String url = download(repo, module, zip);
+      breaker.success(System.currentTimeMillis() - start, System.currentTimeMillis());
+      if (url != null) {
+        download = new Download(url, zip);
+      }
+      return download;
+    } catch (IOException | RuntimeException e) {
+      breaker.failure(System.currentTimeMillis() - start, System.currentTimeMillis());
+      throw e;
+    } finally {
+      if (download == null && zip != null) {
+        zip.delete();
+      }
+    }
+  }
+
+  /*
+   * Downloads the module zip from one repository into `zip`, checked against the repository's SHA-1 when it
+   * publishes one. Returns the URL it came from, or null if the repository doesn't have the module.
+   */
+  private String download(String repo, String module, File zip) throws IOException {
+    String[] parts = module.split("~");
+    String owner = parts[0], name = parts[1], version = parts[2];
+
+    String url;
+    if (repo.startsWith("mavenLocal:")) {
+      String path = repo.substring("mavenLocal:".length()).replaceFirst("^~", System.getProperty("user.home"));
+      url = new File(path).toURI().toString().replaceAll("/$", "") + "/" + mavenPath(owner, name, version, version);
+    } else if (repo.startsWith("maven:")) {
+      String base = repo.substring("maven:".length()).replaceAll("/$", "");
+      url = base + "/" + mavenPath(owner, name, version, snapshotVersion(base, owner, name, version));
+    } else if (repo.startsWith("bintray:")) {
+      String base = repo.substring("bintray:".length()).replaceAll("/$", "");
+      url = base + "/" + owner + "/vertx-mods/" + name + "/" + name + "-" + version + ".zip";
+    } else {
+      logger.error("unknown repository type " + repo + ", skipping it");
+      return null;
+    }
+
+    String expected = null;
+    if (!repo.startsWith("bintray:")) {
+      try (InputStream in = open(url + ".sha1")) {
+        expected = new BufferedReader(new InputStreamReader(in, UTF8)).readLine().trim().split("\\s+")[0];
+      } catch (FileNotFoundException e) {
+        // not every repository publishes checksums
+      }
+    }
+
+    MessageDigest digest = sha1();
+    try (InputStream in = open(url); OutputStream out = new FileOutputStream(zip)) {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+      }
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+
+    String actual = ConfigHash.hex(digest.digest());
+    if (expected != null && !expected.equalsIgnoreCase(actual)) {
+      throw new IOException("checksum mismatch for " + url + ", expected " + expected + " but got " + actual);
+    }
+    return url;
+  }
+
+  private static String mavenPath(String owner, String name, String version, String fileVersion) {
+    return owner.replace('.', '/') + "/" + name + "/" + version + "/" + name + "-" + fileVersion + "-mod.zip";
+  }
+
+  // Snapshots are published with a timestamped file name, which only the version's metadata knows
+  private String snapshotVersion(String base, String owner, String name, String version) {
+    if (!version.endsWith("-SNAPSHOT")) {
+      return version;
+    }
+    String url = base + "/" + owner.replace('.', '/') + "/" + name + "/" + version + "/maven-metadata.xml";
+    StringBuilder metadata = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(url), UTF8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        metadata.append(line);
+      }
+    } catch (IOException e) {
+      return version;
+    }
+    Matcher timestamp = Pattern.compile("<timestamp>([^<]+)</timestamp>").matcher(metadata);
+    Matcher buildNumber = Pattern.compile("<buildNumber>([^<]+)</buildNumber>").matcher(metadata);
+    if (timestamp.find() && buildNumber.find()) {
+      return version.substring(0, version.length() - "SNAPSHOT".length()) + timestamp.group(1) + "-" + buildNumber.group(1);
+    }
+    return version;
+  }
+
+  private static InputStream open(String url) throws IOException {
+    URLConnection connection = new URL(url).openConnection();
+    connection.setConnectTimeout(TIMEOUT);
+    connection.setReadTimeout(TIMEOUT);
+    return connection.getInputStream();
+  }
+
+  // Unpacks into a scratch directory next to the target and renames it into place
+  private void unpack(String module, File zip, File target) throws IOException {
+    File scratch = new File(dir, "." + module + "." + UUID.randomUUID());
+    try {
+      try (ZipInputStream in = new ZipInputStream(new FileInputStream(zip))) {
+        ZipEntry entry;
+        byte[] buffer = new byte[65536];
+        while ((entry = in.getNextEntry()) != null) {
+          // some module zips wrap their content in a directory named after the module
+          String name = entry.getName().startsWith(module + "/") ? entry.getName().substring(module.length() + 1) : entry.getName();
+          if (name.isEmpty()) {
+            continue;
+          }
+          File file = new File(scratch, name);
+          if (!file.getCanonicalPath().startsWith(scratch.getCanonicalPath() + File.separator)) {
+            throw new IOException("zip entry outside of the module: " + entry.getName());
+          }
+          if (entry.isDirectory()) {
+            file.mkdirs();
+            continue;
+          }
+          file.getParentFile().mkdirs();
+          try (OutputStream out = new FileOutputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              out.write(buffer, 0, read);
+            }
+          }
+        }
+      }
+      if (!new File(scratch, "mod.json").isFile()) {
+        throw new IOException("no mod.json in " + module);
+      }
+      try {
+        Files.move(scratch.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        // another Deployer sharing the directory got there first
+        if (!target.isDirectory()) {
+          throw e;
+        }
+      }
+    } finally {
+      if (scratch.exists()) {
+        delete(scratch);
+      }
+    }
+  }
+
+  /*
+   * Drops least recently used modules until the cache fits, on the event loop. What is in use is asked for
+   * now rather than when the fetch started, a deploy may have begun meanwhile. `pinned` are kept as well.
+   */
+  private void evict(String... pinned) {
+    long size = size();
+    if (size <= maxBytes) {
+      return;
+    }
+    Set<String> keep = new HashSet<>(inUse.modules());
+    keep.addAll(Arrays.asList(pinned));
+    keep = withIncludes(keep);
+    List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+      public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+        return Long.compare(a.getValue().lastUsed, b.getValue().lastUsed);
+      }
+    });
+    for (Map.Entry<String, Entry> entry : entries) {
+      if (size <= maxBytes) {
+        break;
+      }
+      if (keep.contains(entry.getKey())) {
+        continue;
+      }
+      size -= entry.getValue().bytes;
+      logger.info("evicting " + entry.getKey() + " from the module cache");
+      remove(entry.getKey());
+    }
+  }
+
+  // `modules` and every module they include, directly or through another include
+  private Set<String> withIncludes(Set<String> modules) {
+    Set<String> all = new HashSet<>();
+    List<String> pending = new ArrayList<>(modules);
+    while (!pending.isEmpty()) {
+      String module = pending.remove(pending.size() - 1);
+      if (all.add(module)) {
+        pending.addAll(includes(module));
+      }
+    }
+    return all;
+  }
+
+  /*
+   * The modules `module` includes, as listed in its mod.json. Read on the event loop, but only when evicting
+   * and once per module version, a module not unpacked yet is read again next time.
+   */
+  private List<String> includes(String module) {
+    List<String> known = includes.get(module);
+    if (known != null) {
+      return known;
+    }
+    File modJson = new File(new File(dir, module), "mod.json");
+    if (!isModuleName(module) || !modJson.isFile()) {
+      return Collections.emptyList();
+    }
+    List<String> included = new ArrayList<>();
+    try {
+      String value = new JsonObject(new String(Files.readAllBytes(modJson.toPath()), UTF8)).getString("includes");
+      if (value != null) {
+        for (String include : value.split(",")) {
+          if (!include.trim().isEmpty()) {
+            included.add(include.trim());
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.error("unable to read the includes of " + module + ", keeping only the module itself", e);
+      return Collections.emptyList();
+    }
+    includes.put(module, included);
+    return included;
+  }
+
+  private void remove(final String module) {
+    index.remove(module);
+    executor.execute(new Runnable() {
+      public void run() {
+        discard(module);
+      }
+    });
+  }
+
+  /*
+   * Runs on the pool, deletes a module's directory after renaming it aside, so the platform finds either the
+   * whole module or none of it.
+   */
+  private void discard(String module) {
+    File target = new File(dir, module);
+    File aside = new File(dir, "." + module + "." + UUID.randomUUID());
+    try {
+      try {
+        Files.move(target.toPath(), aside.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        aside = target;
+      }
+      delete(aside);
+    } catch (IOException e) {
+      logger.error("unable to remove " + module + " from the module cache", e);
+    }
+  }
+
+  private void loadIndex() {
+    File file = new File(dir, INDEX_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      JsonObject json = new JsonObject(new String(Files.readAllBytes(file.toPath()), UTF8));
+      for (String module : json.getFieldNames()) {
+        JsonObject entry = json.getObject(module);
+        // modules removed behind our back are simply forgotten
+        if (new File(dir, module).isDirectory()) {
+          index.put(module, new Entry(entry.getLong("bytes"), entry.getString("hash"), entry.getLong("lastUsed")));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.error("unable to read the module cache index, starting empty", e);
+    }
+  }
+
+  private void saveIndex() {
+    final JsonObject json = new JsonObject();
+    for (Map.Entry<String, Entry> entry : index.entrySet()) {
+      json.putObject(entry.getKey(), new JsonObject()
+                                          .putNumber("bytes", entry.getValue().bytes)
+                                          .putString("hash", entry.getValue().hash)
+                                          .putNumber("lastUsed", entry.getValue().lastUsed));
+    }
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          dir.mkdirs();
+          File tmp = new File(dir, INDEX_FILE + "." + UUID.randomUUID());
+          Files.write(tmp.toPath(), json.encode().getBytes(UTF8));
+          Files.move(tmp.toPath(), new File(dir, INDEX_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+          logger.error("unable to write the module cache index", e);
+        }
+      }
+    });
+  }
+
+  // SHA-1 over the relative path and content of every file under root, in sorted order
+  private static String treeHash(File root) throws IOException {
+    MessageDigest digest = sha1();
+    hashTree(digest, root, "");
+    return ConfigHash.hex(digest.digest());
+  }
+
+  private static void hashTree(MessageDigest digest, File file, String path) throws IOException {
+    if (file.isDirectory()) {
+      String[] children = file.list();
+      if (children == null) {
+        throw new IOException("unable to list " + file);
+      }
+      Arrays.sort(children);
+      for (String child : children) {
+        hashTree(digest, new File(file, child), path + "/" + child);
+      }
+      return;
+    }
+    digest.update(path.getBytes(UTF8));
+    digest.update((byte) 0);
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[65536];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+  }
+
+  // bytes of a file, or of everything below a directory
+  static long treeSize(File file) {
+    if (!file.isDirectory()) {
+      return file.length();
+    }
+    long size = 0;
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        size += treeSize(child);
+      }
+    }
+    return size;
+  }
+
+  private static void delete(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("unable to delete " + file);
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM is required to provide SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/*
+ * Keeps the latest load vector announced by every Deployer in the cluster and picks the least loaded node
+ * for a placement. A node whose vector is older than the staleness window is considered gone.
+ *
+ * Load vectors arrive as event bus messages and are recorded and read on the Deployer's event loop only.
+ */
+final class PlacementScheduler {
+
+  // How much a single deployment weighs against the load per processor and heap use, both of which sit
+  // between 0 and 1 on a healthy node.
+  private static final double DEPLOYMENT_WEIGHT = 0.1;
+
+  // How much a deployment over its resource limits weighs, a noisy neighbour degrades whatever is placed next
+  // to it well beyond the load it shows
+  private static final double NOISY_WEIGHT = 0.5;
+
+  private final long staleAfter;
+  private final Map<String, NodeLoad> nodes = new HashMap<>();
+
+  private static final class NodeLoad {
+    int deployments;
+    final int noisy;
+    final long heapUsed;
+    final long heapMax;
+    final double systemLoad;
+    final int processors;
+    final long received;
+
+    private NodeLoad(JsonObject vector, long received) {
+      this.deployments = vector.getInteger("deployments", 0);
+      this.noisy = vector.getInteger("noisy", 0);
+      this.heapUsed = vector.getLong("heapUsed", 0);
+      this.heapMax = vector.getLong("heapMax", 0);
+      this.systemLoad = vector.getNumber("systemLoad", -1).doubleValue();
+      this.processors = vector.getInteger("processors", 1);
+      this.received = received;
+    }
+
+    // lower is less loaded
+    double score() {
+      double load = systemLoad < 0 ? 0 : systemLoad / Math.max(1, processors);
+      double heap = heapMax <= 0 ? 0 : (double) heapUsed / heapMax;
+      return load + heap + DEPLOYMENT_WEIGHT * deployments + NOISY_WEIGHT * noisy;
+    }
+  }
+
+  PlacementScheduler(long staleAfter) {
+    this.staleAfter = staleAfter;
+  }
+
+  /*
+   * Samples this JVM's load vector, a system load of -1 means the platform doesn't provide one. `noisy` is the
+   * number of deployments over their resource limits.
+   */
+  static JsonObject sample(String nodeId, int deployments, int noisy) {
+    Runtime runtime = Runtime.getRuntime();
+    return new JsonObject()
+                .putString("nodeId", nodeId)
+                .putNumber("deployments", deployments)
+                .putNumber("noisy", noisy)
+                .putNumber("heapUsed", runtime.totalMemory() - runtime.freeMemory())
+                .putNumber("heapMax", runtime.maxMemory())
+                .putNumber("systemLoad", ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage())
+                .putNumber("processors", runtime.availableProcessors());
+  }
+
+  void update(JsonObject vector, long now) {
+    String nodeId = vector.getString("nodeId");
+    if (nodeId != null) {
+      nodes.put(nodeId, new NodeLoad(vector, now));
+    }
+  }
+
+  /*
+   * Picks the least loaded live node, limited to `include` when it is given and never one in `exclude`.
+   * Returns null if no node is eligible. The picked node's deployment count is bumped straight away so a
+   * burst of placements spreads out instead of piling onto the same node until its next announcement.
+   */
+  String pick(JsonArray include, JsonArray exclude, long now) {
+    expire(now);
+
+    String best = null;
+    double bestScore = Double.MAX_VALUE;
+    for (Map.Entry<String, NodeLoad> entry : nodes.entrySet()) {
+      String nodeId = entry.getKey();
+      if ((include != null && !include.contains(nodeId)) || (exclude != null && exclude.contains(nodeId))) {
+        continue;
+      }
+      double score = entry.getValue().score();
+      // tie break on nodeId so every node would make the same choice
+      if (score < bestScore || (score == bestScore && nodeId.compareTo(best) < 0)) {
+        best = nodeId;
+        bestScore = score;
+      }
+    }
+
+    if (best != null) {
+      nodes.get(best).deployments++;
+    }
+    return best;
+  }
+
+  // The nodes which have announced themselves within the staleness window, sorted by nodeId
+  Set<String> liveNodes(long now) {
+    expire(now);
+    return new TreeSet<>(nodes.keySet());
+  }
+
+  private void expire(long now) {
+    for (Iterator<NodeLoad> it = nodes.values().iterator(); it.hasNext(); ) {
+      if (now - it.next().received > staleAfter) {
+        it.remove();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,157 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/*
+ * The replica sets of the cluster, modules which should run on exactly `replicas` nodes, and the actions it
+ * takes to get there from a cluster inventory. A node runs at most one deployment of a module, so a replica
+ * is a node running the set's version, `instances` still sets the verticle instances within it.
+ *
+ * Every node keeps a copy of every set so whichever node leads can act on them. Definitions carry a revision,
+ * the time they were made, and a newer revision of a set replaces an older one wherever it arrives first.
+ *
+ * Definitions are adopted from sync messages and planned against on the Deployer's event loop only, a plan
+ * is a snapshot of the sets at the time it was made.
+ */
+final class ReplicaSets {
+
+  // owner~name -> deploy spec plus `replicas` and `revision`
+  private final Map<String, JsonObject> sets = new TreeMap<>();
+
+  static String key(JsonObject spec) {
+    return spec.getString("moduleOwner") + "~" + spec.getString("moduleName");
+  }
+
+  // Adopts `set` unless we hold a newer revision of it, returns whether it was adopted
+  boolean define(JsonObject set) {
+    JsonObject current = sets.get(key(set));
+    if (current != null && current.getLong("revision", 0) > set.getLong("revision", 0)) {
+      return false;
+    }
+    sets.put(key(set), set.copy());
+    return true;
+  }
+
+  boolean isEmpty() {
+    return sets.isEmpty();
+  }
+
+  JsonArray toJson() {
+    JsonArray json = new JsonArray();
+    for (JsonObject set : sets.values()) {
+      json.addObject(set.copy());
+    }
+    return json;
+  }
+
+  /*
+   * Works out what to deploy and undeploy where, given a cluster inventory as gathered by a cluster audit.
+   * Missing replicas go to the least loaded nodes not running the set's version, as picked by `placement`,
+   * nodes running another version of the module being upgraded in place. Surplus replicas are only removed
+   * from a complete inventory, a node which didn't answer may be running one we can't see, and being a replica
+   * over for a while is cheaper than being one short. Returns the actions, {operation, node, spec}, and fills
+   * `status` with each set's replicas, running and planned changes.
+   */
+  List<JsonObject> plan(JsonObject inventory, PlacementScheduler placement, long now, JsonObject status) {
+    List<JsonObject> actions = new ArrayList<>();
+    boolean complete = inventory.getBoolean("complete", false);
+    JsonObject nodes = inventory.getObject("nodes");
+
+    for (JsonObject set : sets.values()) {
+      int replicas = set.getInteger("replicas");
+      TreeSet<String> running = new TreeSet<>();
+      JsonArray candidates = new JsonArray();
+
+      for (String node : new TreeSet<>(nodes.getFieldNames())) {
+        String state = null;
+        for (Object element : nodes.getObject(node).getArray("modules")) {
+          JsonObject deployed = (JsonObject) element;
+          if (set.getString("moduleOwner").equals(deployed.getString("moduleOwner"))
+              && set.getString("moduleName").equals(deployed.getString("moduleName"))
+              && set.getString("moduleVersion").equals(deployed.getString("moduleVersion"))) {
+            state = deployed.getString("state");
+          }
+        }
+        if (state != null && !"UNDEPLOYING".equals(state)) {
+          running.add(node);
+        } else {
+          candidates.addString(node);
+        }
+      }
+
+      JsonArray adding = new JsonArray();
+      JsonArray removing = new JsonArray();
+      for (int i = running.size(); i < replicas; i++) {
+        String node = placement.pick(candidates, adding, now);
+        if (node == null) {
+          break;
+        }
+        adding.addString(node);
+        actions.add(action("deploy", node, deploySpec(set)));
+      }
+      if (complete) {
+        // from the end, so every leader would pick the same nodes
+        List<String> surplus = new ArrayList<>(running.descendingSet());
+        for (String node : surplus.subList(0, Math.max(0, running.size() - replicas))) {
+          removing.addString(node);
+          actions.add(action("undeploy", node, new JsonObject()
+                                                  .putString("moduleOwner", set.getString("moduleOwner"))
+                                                  .putString("moduleName", set.getString("moduleName"))
+                                                  .putString("moduleVersion", set.getString("moduleVersion"))));
+        }
+      }
+
+      int reachable = running.size() + adding.size() - removing.size();
+      status.putObject(key(set), new JsonObject()
+                                     .putString("moduleVersion", set.getString("moduleVersion"))
+                                     .putNumber("replicas", replicas)
+                                     .putNumber("running", running.size())
+                                     .putNumber("short", Math.max(0, replicas - reachable))
+                                     .putArray("adding", adding)
+                                     .putArray("removing", removing));
+    }
+    return actions;
+  }
+
+  private static JsonObject deploySpec(JsonObject set) {
+    JsonObject spec = set.copy().putBoolean("xgrade", true);
+    spec.removeField("replicas");
+    spec.removeField("revision");
+    // a requestId would have every node replay the outcome of the first deploy it saw of this set
+    spec.removeField("requestId");
+    return spec;
+  }
+
+  private static JsonObject action(String operation, String node, JsonObject spec) {
+    return new JsonObject()
+                .putString("operation", operation)
+                .putString("node", node)
+                .putObject("spec", spec);
+  }
+
+}
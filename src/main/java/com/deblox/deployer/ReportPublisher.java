@@ -0,0 +1,131 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+
+/*
+ * Publishes report events to the reports address.
+ *
+ * In "event" mode, the default, every event is published on its own as it happens. In "batch" mode events are
+ * buffered for up to `window` milliseconds or `maxEvents` events, whichever comes first, and published together
+ * as a single envelope. Module configs in batched events are replaced by their hash, with each distinct config
+ * body carried once per envelope, or not at all when config bodies are dropped.
+ *
+ * The buffer is flushed by a vert.x timer, which runs on the event loop of the Deployer that set it, the only
+ * place publish() and flush() may be called from.
+ */
+final class ReportPublisher {
+
+  static final String MODE_EVENT = "event";
+  static final String MODE_BATCH = "batch";
+
+  // what a batch does with config bodies
+  static final String CONFIGS_HASH = "hash";
+  static final String CONFIGS_DROP = "drop";
+
+  private final Vertx vertx;
+  private final String reportAddress;
+  private final String nodeId;
+  private final boolean batching;
+  private final long window;
+  private final int maxEvents;
+  private final boolean dropConfigs;
+
+  private JsonArray events = new JsonArray();
+  private JsonObject configs = new JsonObject();
+  private long timerID = -1;
+
+  ReportPublisher(Vertx vertx, String reportAddress, String nodeId, String mode, long window, int maxEvents, String configBodies) {
+    this.vertx = vertx;
+    this.reportAddress = reportAddress;
+    this.nodeId = nodeId;
+    this.batching = MODE_BATCH.equals(mode);
+    this.window = window;
+    this.maxEvents = Math.max(1, maxEvents);
+    this.dropConfigs = CONFIGS_DROP.equals(configBodies);
+  }
+
+  void publish(JsonObject report) {
+    if (!batching) {
+      vertx.eventBus().publish(reportAddress, report);
+      return;
+    }
+
+    events.addObject(withoutConfig(report));
+
+    if (events.size() >= maxEvents) {
+      flush();
+    } else if (timerID == -1) {
+      timerID = vertx.setTimer(window, new Handler<Long>() {
+        public void handle(Long timerID) {
+          ReportPublisher.this.timerID = -1;
+          flush();
+        }
+      });
+    }
+  }
+
+  // Publishes whatever is buffered right away
+  void flush() {
+    if (timerID != -1) {
+      vertx.cancelTimer(timerID);
+      timerID = -1;
+    }
+    if (events.size() == 0) {
+      return;
+    }
+
+    JsonObject envelope = new JsonObject()
+                              .putString("action", "batch")
+                              .putString("node", nodeId)
+                              .putNumber("count", events.size())
+                              .putArray("events", events);
+    if (!dropConfigs) {
+      envelope.putObject("configs", configs);
+    }
+    vertx.eventBus().publish(reportAddress, envelope);
+
+    events = new JsonArray();
+    configs = new JsonObject();
+  }
+
+  // Swaps the config body of a deploy report's detail for its hash, remembering the body for the envelope
+  private JsonObject withoutConfig(JsonObject report) {
+    JsonObject detail = report.getObject("detail");
+    if (detail == null || detail.getObject("config") == null) {
+      return report;
+    }
+
+    JsonObject config = detail.getObject("config");
+    String hash = ConfigHash.of(config);
+    if (!dropConfigs && !configs.containsField(hash)) {
+      configs.putObject(hash, config);
+    }
+
+    JsonObject slimDetail = detail.copy();
+    slimDetail.removeField("config");
+    return report.copy().putObject("detail", slimDetail.putString("configHash", hash));
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonObject;
+
+
+/*
+ * Circuit breaker and latency tracker of one module repository.
+ *
+ * After `failureThreshold` failures in a row the repository is skipped for `openFor` milliseconds, then a single
+ * request is let through to try it again. If that one succeeds the repository is back in use, if it fails it is
+ * skipped for another `openFor`. Answers slower than `slowThreshold` milliseconds count as failures, a mirror
+ * which takes a minute to answer is as good as dead. A repository answering that it doesn't have a module is
+ * healthy.
+ *
+ * Thread safe, repositories are tried from the module cache's pool.
+ */
+final class RepositoryBreaker {
+
+  private enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String repository;
+  private final int failureThreshold;
+  private final long openFor;
+  private final long slowThreshold;
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  private State state = State.CLOSED;
+  private int failures = 0; // in a row
+  private long openUntil = 0;
+  private long skipped = 0;
+
+  RepositoryBreaker(String repository, int failureThreshold, long openFor, long slowThreshold) {
+    this.repository = repository;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openFor = openFor;
+    this.slowThreshold = slowThreshold;
+  }
+
+  // Whether a request may go to the repository now, every true must be followed by success() or failure()
+  synchronized boolean allow(long now) {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now >= openUntil) {
+          state = State.HALF_OPEN;
+          return true;
+        }
+        skipped++;
+        return false;
+      default:
+        // the trial request is still out
+        skipped++;
+        return false;
+    }
+  }
+
+  synchronized void success(long millis, long now) {
+    latency.record(millis);
+    if (millis > slowThreshold) {
+      trip(now);
+      return;
+    }
+    failures = 0;
+    state = State.CLOSED;
+  }
+
+  synchronized void failure(long millis, long now) {
+    latency.record(millis);
+    trip(now);
+  }
+
+  synchronized JsonObject toJson() {
+    return new JsonObject()
+                .putString("repository", repository)
+                .putString("state", state.name().toLowerCase())
+                .putNumber("failures", failures)
+                .putNumber("skipped", skipped)
+                .putObject("latency", latency.toJson());
+  }
+
+  private void trip(long now) {
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      state = State.OPEN;
+      openUntil = now + openFor;
+    }
+  }
+
+}
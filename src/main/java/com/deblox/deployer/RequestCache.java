@@ -0,0 +1,137 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Remembers the outcome of recent requests by request id, so a client retrying a request gets the outcome of
+ * the original instead of having it carried out again. A retry arriving while the original is still in flight
+ * waits for it and gets the same outcome.
+ *
+ * Outcomes are kept for `ttl` milliseconds after they are known, and at most `maxEntries` requests are kept,
+ * the oldest going first. A request pushed out while still in flight still answers the retries already
+ * waiting on it.
+ *
+ * Outcomes are recorded from reply handlers on the Deployer's event loop and expired lazily on lookup, so
+ * there is no timer thread to race with, as long as the cache is only used from that event loop.
+ */
+final class RequestCache {
+
+  private static final class Request {
+    JsonObject result; // null while in flight
+    long expiresAt;
+    final List<Handler<JsonObject>> waiting = new ArrayList<>();
+  }
+
+  private final long ttl;
+  private final Map<String, Request> entries;
+  private long replayed = 0;
+
+  RequestCache(final int maxEntries, long ttl) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<String, Request>() {
+      protected boolean removeEldestEntry(Map.Entry<String, Request> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /*
+   * If `key` was seen within the ttl, hands the remembered outcome to handler, once it is known, and returns
+   * true. Otherwise returns false and the request must be carried out, with its outcome passed through the
+   * handler returned by completing().
+   */
+  boolean replay(String key, Handler<JsonObject> handler, long now) {
+    expire(now);
+
+    Request entry = entries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    replayed++;
+    if (entry.result == null) {
+      entry.waiting.add(handler);
+    } else {
+      handler.handle(replayed(entry.result));
+    }
+    return true;
+  }
+
+  // Starts remembering `key` and wraps handler so its outcome is remembered too
+  Handler<JsonObject> completing(final String key, final Handler<JsonObject> handler) {
+    final Request entry = new Request();
+    entries.put(key, entry);
+
+    return new Handler<JsonObject>() {
+      public void handle(JsonObject result) {
+        entry.result = result.copy();
+        entry.expiresAt = System.currentTimeMillis() + ttl;
+        // move it to the end, so finished requests stay in the order they finished for expire()
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+          entries.put(key, entry);
+        }
+
+        handler.handle(result);
+        for (Handler<JsonObject> waiter : entry.waiting) {
+          waiter.handle(replayed(entry.result));
+        }
+        entry.waiting.clear();
+      }
+    };
+  }
+
+  // number of requests answered from the cache so far
+  long replayed() {
+    return replayed;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  // Drops expired outcomes, finished requests are kept in the order they finished so these are at the front
+  private void expire(long now) {
+    Iterator<Request> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Request entry = iterator.next();
+      if (entry.result == null) {
+        // still in flight, finished requests behind it may still have expired
+        continue;
+      }
+      if (entry.expiresAt > now) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+
+  private static JsonObject replayed(JsonObject result) {
+    return result.copy().putBoolean("replayed", true);
+  }
+
+}
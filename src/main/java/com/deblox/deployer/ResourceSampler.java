@@ -0,0 +1,202 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Samples what the deployed modules use of the node, as far as the JVM lets us tell them apart.
+ *
+ * A thread belongs to a module when its context class loader is, or descends from, the module's class loader,
+ * which is the case for every thread a module starts itself. The platform's event loop and worker threads are
+ * shared by every module and take on the class loader of whichever module ran on them last, so they aren't
+ * attributed to any. A module's CPU share is the CPU time of its threads since the previous sample, as a
+ * fraction of one processor. The JVM doesn't account heap per class loader, so the size of the module on disk,
+ * which its class loader loads from, stands in for what its classes take up.
+ *
+ * Samples are taken on a thread of the sampler's own, walking every thread of the JVM is not for the event loop.
+ */
+final class ResourceSampler {
+
+  private final Vertx vertx;
+  private final File[] modsDirs; // where deployed modules may be unpacked, in the order the platform looks
+  private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(DaemonThreads.named("deployer-resources"));
+
+  // only touched from the sampler's thread
+  private final Map<ClassLoader, String> owners = new WeakHashMap<>();
+  private final Map<String, Long> diskBytes = new HashMap<>(); // an unpacked module doesn't change size
+  private Map<Long, Long> lastCpu = new HashMap<>(); // thread id -> CPU nanos as of the previous sample
+  private long lastSampled = System.nanoTime();
+
+  ResourceSampler(Vertx vertx, File... modsDirs) {
+    this.vertx = vertx;
+    this.modsDirs = modsDirs;
+  }
+
+  /*
+   * Samples the `modules`, owner~name~version, handing {threads, cpu, cpuTime, diskBytes} per module to
+   * resultHandler on the calling context. cpu is -1 where the JVM doesn't measure thread CPU time.
+   */
+  void sample(final Set<String> modules, final Handler<Map<String, JsonObject>> resultHandler) {
+    final Context context = vertx.currentContext();
+    executor.execute(new Runnable() {
+      public void run() {
+        final Map<String, JsonObject> figures = sampleNow(modules);
+        context.runOnContext(new Handler<Void>() {
+          public void handle(Void ignored) {
+            resultHandler.handle(figures);
+          }
+        });
+      }
+    });
+  }
+
+  void close() {
+    executor.shutdownNow();
+  }
+
+  private Map<String, JsonObject> sampleNow(Set<String> modules) {
+    long now = System.nanoTime();
+    long elapsed = Math.max(1, now - lastSampled);
+    lastSampled = now;
+    boolean cpuMeasured = threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+
+    Map<String, int[]> threads = new HashMap<>();
+    Map<String, long[]> cpu = new HashMap<>();
+    for (String module : modules) {
+      threads.put(module, new int[1]);
+      cpu.put(module, new long[1]);
+    }
+
+    Map<Long, Long> cpuNow = new HashMap<>();
+    for (Thread thread : allThreads()) {
+      if (thread.getName().startsWith("vert.x-")) {
+        continue;
+      }
+      String module = owner(thread.getContextClassLoader(), modules);
+      if (module == null) {
+        continue;
+      }
+      threads.get(module)[0]++;
+      if (cpuMeasured) {
+        long cpuTime = threadBean.getThreadCpuTime(thread.getId());
+        if (cpuTime >= 0) {
+          cpuNow.put(thread.getId(), cpuTime);
+          // a thread started since the previous sample used all of its CPU time within this one
+          Long before = lastCpu.get(thread.getId());
+          cpu.get(module)[0] += cpuTime - (before == null ? 0 : before);
+        }
+      }
+    }
+    lastCpu = cpuNow;
+
+    Map<String, JsonObject> figures = new HashMap<>();
+    for (String module : modules) {
+      long cpuTime = cpu.get(module)[0];
+      figures.put(module, new JsonObject()
+                              .putNumber("threads", threads.get(module)[0])
+                              .putNumber("cpu", cpuMeasured ? Math.round(1000.0 * cpuTime / elapsed) / 1000.0 : -1)
+                              .putNumber("cpuTime", cpuTime / 1000000)
+                              .putNumber("diskBytes", diskBytes(module)));
+    }
+    return figures;
+  }
+
+  // Every live thread of the JVM
+  private static Thread[] allThreads() {
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    Thread[] threads;
+    int count;
+    do {
+      // enumerate() drops what doesn't fit, so make room to spare and retry if even that filled up
+      threads = new Thread[root.activeCount() * 2 + 16];
+      count = root.enumerate(threads, true);
+    } while (count == threads.length);
+
+    Thread[] live = new Thread[count];
+    System.arraycopy(threads, 0, live, 0, count);
+    return live;
+  }
+
+  // The module of `modules` whose class loader is, or is a parent of, `loader`, null if none
+  private String owner(ClassLoader loader, Set<String> modules) {
+    for (ClassLoader current = loader; current != null; current = current.getParent()) {
+      String module = owners.get(current);
+      if (module == null && !owners.containsKey(current)) {
+        module = moduleOf(current);
+        owners.put(current, module);
+      }
+      if (module != null && modules.contains(module)) {
+        return module;
+      }
+    }
+    return null;
+  }
+
+  // The owner~name~version of the module directory a class loader loads from, null if it isn't a module's
+  private static String moduleOf(ClassLoader loader) {
+    if (!(loader instanceof URLClassLoader)) {
+      return null;
+    }
+    for (URL url : ((URLClassLoader) loader).getURLs()) {
+      for (String part : url.getPath().split("/")) {
+        if (ModuleCache.isModuleName(part)) {
+          return part;
+        }
+      }
+    }
+    return null;
+  }
+
+  private long diskBytes(String module) {
+    Long bytes = diskBytes.get(module);
+    if (bytes != null) {
+      return bytes;
+    }
+    for (File dir : modsDirs) {
+      File moduleDir = new File(dir, module);
+      if (moduleDir.isDirectory()) {
+        bytes = ModuleCache.treeSize(moduleDir);
+        diskBytes.put(module, bytes);
+        return bytes;
+      }
+    }
+    return 0;
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Appends the spans of finished deploys to a trace file in the JSON Array Format of the Trace Event Format,
+ * one event per line. That format allows leaving the array unterminated, so the file is valid however the
+ * process ends and can be loaded into chrome://tracing or Perfetto while the Deployer is still writing it.
+ *
+ * Writes happen on a thread of the writer's own, so the event loop never waits on the disk.
+ */
+final class TraceWriter {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final int pid;
+  private final Logger logger;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(DaemonThreads.named("deployer-trace"));
+
+  // only touched from the writer's thread
+  private OutputStream out;
+
+  // `pid` is the process id trace viewers group the node's events under
+  TraceWriter(File file, int pid, Logger logger) {
+    this.file = file;
+    this.pid = pid;
+    this.logger = logger;
+  }
+
+  // The OS process id of this JVM where the platform reveals it, 0 otherwise
+  static int processId() {
+    String name = ManagementFactory.getRuntimeMXBean().getName(); // pid@host on the common JVMs
+    try {
+      return Integer.parseInt(name.substring(0, name.indexOf('@')));
+    } catch (RuntimeException e) {
+      return 0;
+    }
+  }
+
+  void write(DeployTrace trace) {
+    final JsonArray events = trace.events(pid);
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          if (out == null) {
+            if (file.getParentFile() != null) {
+              file.getParentFile().mkdirs();
+            }
+            boolean fresh = !file.exists() || file.length() == 0;
+            out = new FileOutputStream(file, true);
+            if (fresh) {
+              out.write("[\n".getBytes(UTF8));
+            }
+          }
+          StringBuilder lines = new StringBuilder();
+          for (Object event : events) {
+            lines.append(((JsonObject) event).encode()).append(",\n");
+          }
+          out.write(lines.toString().getBytes(UTF8));
+          out.flush();
+        } catch (IOException e) {
+          logger.error("unable to write to trace file " + file, e);
+        }
+      }
+    });
+  }
+
+  void close() {
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          if (out != null) {
+            out.close();
+          }
+        } catch (IOException e) {
+          logger.error("unable to close trace file " + file, e);
+        }
+      }
+    });
+    executor.shutdown();
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+
+public class DeploymentJournalTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Logger logger = LoggerFactory.getLogger(DeploymentJournalTest.class);
+
+  private static JsonObject spec(String name, String version) {
+    return new JsonObject()
+                .putString("moduleOwner", "com.deblox")
+                .putString("moduleName", name)
+                .putString("moduleVersion", version)
+                .putObject("moduleConfig", new JsonObject());
+  }
+
+  @Test
+  public void testRecoverReplaysJournal() throws Exception {
+    File dir = Files.createTempDirectory("deployer-journal").toFile();
+
+    DeploymentJournal journal = new DeploymentJournal(dir, 10, 1000, logger);
+    assertTrue(journal.recover().isEmpty());
+    journal.recordDeploy(spec("foo", "1.0.0"));
+    journal.recordDeploy(spec("bar", "1.0.0"));
+    journal.recordDeploy(spec("foo", "2.0.0"));
+    journal.recordUndeploy("com.deblox~bar");
+    journal.close();
+
+    // the last record for a module wins
+    List<JsonObject> recovered = new DeploymentJournal(dir, 10, 1000, logger).recover();
+    assertEquals(1, recovered.size());
+    assertEquals("foo", recovered.get(0).getString("moduleName"));
+    assertEquals("2.0.0", recovered.get(0).getString("moduleVersion"));
+  }
+
+  @Test
+  public void testRecoverSkipsTornRecord() throws Exception {
+    File dir = Files.createTempDirectory("deployer-journal").toFile();
+
+    // as left by a crash in the middle of a write
+    String intact = new JsonObject()
+                        .putString("op", "deploy")
+                        .putString("key", "com.deblox~foo")
+                        .putObject("spec", spec("foo", "1.0.0"))
+                        .encode();
+    Files.write(new File(dir, "deployments.journal").toPath(),
+                (intact + "\n{\"op\":\"deploy\",\"key\":\"com.deblox~ba").getBytes(UTF8));
+
+    List<JsonObject> recovered = new DeploymentJournal(dir, 10, 1000, logger).recover();
+    assertEquals(1, recovered.size());
+    assertEquals("foo", recovered.get(0).getString("moduleName"));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    File dir = Files.createTempDirectory("deployer-journal").toFile();
+
+    DeploymentJournal journal = new DeploymentJournal(dir, 10, 2, logger);
+    journal.recover();
+    journal.recordDeploy(spec("foo", "1.0.0"));
+    assertFalse(journal.compactionDue());
+    journal.recordDeploy(spec("bar", "1.0.0"));
+    assertTrue(journal.compactionDue());
+
+    journal.compact(Arrays.asList(spec("foo", "1.0.0"), spec("bar", "1.0.0")));
+    assertFalse(journal.compactionDue());
+    journal.recordUndeploy("com.deblox~foo");
+    journal.close();
+
+    // the snapshot holds both, the journal only what came after it
+    assertTrue(new File(dir, "deployments.snapshot").isFile());
+    List<String> lines = Files.readAllLines(new File(dir, "deployments.journal").toPath(), UTF8);
+    assertEquals(1, lines.size());
+    assertEquals("undeploy", new JsonObject(lines.get(0)).getString("op"));
+
+    List<JsonObject> recovered = new DeploymentJournal(dir, 10, 2, logger).recover();
+    assertEquals(1, recovered.size());
+    assertEquals("bar", recovered.get(0).getString("moduleName"));
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.*;
+
+
+public class InventoryAnnouncerTest {
+
+  private static JsonObject module(String name, String version) {
+    return new JsonObject()
+                .putString("moduleOwner", "com.deblox")
+                .putString("moduleName", name)
+                .putString("moduleVersion", version)
+                .putString("state", "DEPLOYED");
+  }
+
+  @Test
+  public void testFirstAnnouncementIsSnapshot() {
+    InventoryAnnouncer announcer = new InventoryAnnouncer("node1", 10);
+
+    JsonObject announcement = announcer.next(new JsonArray().addObject(module("foo", "1.0.0")));
+    assertEquals("snapshot", announcement.getString("type"));
+    assertEquals("node1", announcement.getString("node"));
+    assertEquals(1, announcement.getLong("version").longValue());
+    assertEquals(1, announcement.getArray("modules").size());
+  }
+
+  @Test
+  public void testDeltas() {
+    InventoryAnnouncer announcer = new InventoryAnnouncer("node1", 10);
+    announcer.next(new JsonArray().addObject(module("foo", "1.0.0")).addObject(module("bar", "1.0.0")));
+
+    // nothing changed, nothing to say
+    assertNull(announcer.next(new JsonArray().addObject(module("foo", "1.0.0")).addObject(module("bar", "1.0.0"))));
+
+    JsonObject delta = announcer.next(new JsonArray().addObject(module("foo", "2.0.0")).addObject(module("baz", "1.0.0")));
+    assertEquals("delta", delta.getString("type"));
+    assertEquals(2, delta.getLong("version").longValue());
+    assertEquals(1, delta.getLong("baseVersion").longValue());
+    assertEquals(2, delta.getArray("changed").size());
+    assertEquals(1, delta.getArray("removed").size());
+    assertEquals("com.deblox~bar", delta.getArray("removed").get(0));
+
+    // a listener which lost track gets the whole of it
+    JsonObject current = announcer.current();
+    assertEquals("snapshot", current.getString("type"));
+    assertEquals(2, current.getLong("version").longValue());
+    assertEquals(2, current.getArray("modules").size());
+  }
+
+  @Test
+  public void testSnapshotEvery() {
+    InventoryAnnouncer announcer = new InventoryAnnouncer("node1", 2);
+    JsonArray modules = new JsonArray().addObject(module("foo", "1.0.0"));
+
+    assertEquals("snapshot", announcer.next(modules).getString("type"));
+    assertNull(announcer.next(modules));
+
+    // due, even though nothing changed
+    JsonObject snapshot = announcer.next(modules);
+    assertEquals("snapshot", snapshot.getString("type"));
+    assertEquals(2, snapshot.getLong("version").longValue());
+  }
+
+}
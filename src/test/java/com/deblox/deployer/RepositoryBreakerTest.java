@@ -0,0 +1,101 @@
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package com.deblox.deployer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class RepositoryBreakerTest {
+
+  private static final String REPO = "maven:http://localhost:18181";
+
+  @Test
+  public void testOpensAfterFailureThreshold() {
+    RepositoryBreaker breaker = new RepositoryBreaker(REPO, 3, 30000, 10000);
+
+    for (int i = 0; i < 2; i++) {
+      assertTrue(breaker.allow(1000));
+      breaker.failure(10, 1000);
+    }
+    assertEquals("closed", breaker.toJson().getString("state"));
+
+    assertTrue(breaker.allow(1000));
+    breaker.failure(10, 1000);
+    assertEquals("open", breaker.toJson().getString("state"));
+
+    // skipped while open
+    assertFalse(breaker.allow(2000));
+    assertFalse(breaker.allow(30999));
+    assertEquals(2, breaker.toJson().getLong("skipped").longValue());
+  }
+
+  @Test
+  public void testSuccessResetsFailures() {
+    RepositoryBreaker breaker = new RepositoryBreaker(REPO, 2, 30000, 10000);
+
+    assertTrue(breaker.allow(1000));
+    breaker.failure(10, 1000);
+    assertTrue(breaker.allow(1000));
+    breaker.success(10, 1000);
+    assertTrue(breaker.allow(1000));
+    breaker.failure(10, 1000);
+
+    // not two in a row
+    assertEquals("closed", breaker.toJson().getString("state"));
+    assertTrue(breaker.allow(1000));
+  }
+
+  @Test
+  public void testSlowAnswerCountsAsFailure() {
+    RepositoryBreaker breaker = new RepositoryBreaker(REPO, 1, 30000, 10000);
+
+    assertTrue(breaker.allow(1000));
+    breaker.success(10001, 11001);
+    assertEquals("open", breaker.toJson().getString("state"));
+    assertFalse(breaker.allow(12000));
+  }
+
+  @Test
+  public void testHalfOpensAfterOpenFor() {
+    RepositoryBreaker breaker = new RepositoryBreaker(REPO, 1, 30000, 10000);
+
+    assertTrue(breaker.allow(1000));
+    breaker.failure(10, 1000);
+    assertFalse(breaker.allow(30999));
+
+    // a single trial once openFor is up, nothing else while it is out
+    assertTrue(breaker.allow(31000));
+    assertEquals("half_open", breaker.toJson().getString("state"));
+    assertFalse(breaker.allow(31001));
+
+    // a failed trial opens it for another openFor
+    breaker.failure(10, 31010);
+    assertEquals("open", breaker.toJson().getString("state"));
+    assertFalse(breaker.allow(61009));
+    assertTrue(breaker.allow(61010));
+
+    // and a successful one closes it
+    breaker.success(10, 61020);
+    assertEquals("closed", breaker.toJson().getString("state"));
+    assertTrue(breaker.allow(61030));
+  }
+
+}
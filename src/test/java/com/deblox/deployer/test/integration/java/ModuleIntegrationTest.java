@@ -22,11 +22,19 @@ import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.http.HttpClientResponse;
+import org.vertx.java.core.http.HttpServer;
 import org.vertx.java.core.http.HttpServerRequest;
 import org.vertx.testtools.TestVerticle;
 import org.vertx.testtools.VertxAssert;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 import static org.vertx.testtools.VertxAssert.*;
 
 /**
@@ -147,6 +155,63 @@ public class ModuleIntegrationTest extends TestVerticle {
     });
   }
 
+  @Test
+  public void testDeployModuleTraced() {
+    container.logger().info("in testDeployModuleTraced()");
+
+    JsonObject jo = new JsonObject()
+                        .putString("moduleName", "mod-auth-mgr")
+                        .putString("moduleVersion", "2.0.0-final")
+                        .putString("moduleOwner", "io.vertx")
+                        .putObject("moduleConfig", new JsonObject())
+                        .putString("correlationId", "trace-me");
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        assertEquals("trace-me", reply.body().getString("correlationId"));
+        JsonObject phases = reply.body().getObject("trace").getObject("phases");
+        assertNotNull(phases.getNumber("validate"));
+        assertNotNull(phases.getNumber("resolve"));
+        assertNotNull(phases.getNumber("start"));
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployModuleBadXgrade() {
+    container.logger().info("in testDeployModuleBadXgrade()");
+
+    final JsonObject jo = new JsonObject()
+                        .putString("moduleName", "mod-auth-mgr")
+                        .putString("moduleVersion", "2.0.0-final")
+                        .putString("moduleOwner", "io.vertx")
+                        .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo.copy().putString("xgrade", "yes"), new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+
+        // the bad request must not have held up the module
+        vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
   @Test
   public void testDeployModuleDuplicate() {
     container.logger().info("in testDeployModule()");
@@ -174,6 +239,35 @@ public class ModuleIntegrationTest extends TestVerticle {
     });
   }
 
+  @Test
+  public void testDeployModuleConcurrentDuplicate() {
+    container.logger().info("in testDeployModuleConcurrentDuplicate()");
+
+    final JsonObject jo = new JsonObject()
+                        .putString("moduleName", "mod-auth-mgr")
+                        .putString("moduleVersion", "2.0.0-final")
+                        .putString("moduleOwner", "io.vertx")
+                        .putObject("moduleConfig", new JsonObject().putString("someconfig", "someval"));
+
+    // both are sent before either is processed, the second must see the first's deployment
+    final String[] statuses = new String[2];
+    for (int i = 0; i < 2; i++) {
+      final int index = i;
+      vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+        @Override
+        public void handle(Message<JsonObject> reply) {
+          System.out.println("Response: " + reply.body());
+          statuses[index] = reply.body().getString("status");
+          if (statuses[0] != null && statuses[1] != null) {
+            assertEquals("ok", statuses[0]);
+            assertEquals("error", statuses[1]);
+            testComplete();
+          }
+        }
+      });
+    }
+  }
+
   @Test
   public void testDeployModuleXgrade() {
     container.logger().info("in testDeployModule()");
@@ -203,6 +297,81 @@ public class ModuleIntegrationTest extends TestVerticle {
   }
 
 
+  @Test
+  public void testDeployModuleXgradeStartStop() {
+    container.logger().info("in testDeployModuleXgradeStartStop()");
+
+    final JsonObject jo = new JsonObject()
+                        .putString("moduleName", "mod-auth-mgr")
+                        .putString("moduleVersion", "2.0.0-final")
+                        .putString("moduleOwner", "io.vertx")
+                        .putBoolean("xgrade", true)
+                        .putString("xgradeStrategy", "start-stop")
+                        .putObject("moduleConfig", new JsonObject().putString("someconfig", "someval"));
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        final String firstID = reply.body().getString("message");
+
+        vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertFalse(firstID.equals(reply.body().getString("message")));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testDeployModuleXgradeStartStopFailureKeepsOld() {
+    container.logger().info("in testDeployModuleXgradeStartStopFailureKeepsOld()");
+
+    final JsonObject jo = new JsonObject()
+                        .putString("moduleName", "mod-auth-mgr")
+                        .putString("moduleVersion", "2.0.0-final")
+                        .putString("moduleOwner", "io.vertx")
+                        .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+
+        // an upgrade to a version which doesn't exist must leave 2.0.0-final deployed
+        JsonObject upgrade = jo.copy()
+                               .putString("moduleVersion", "0.0.0-nonexistent")
+                               .putBoolean("xgrade", true)
+                               .putString("xgradeStrategy", "start-stop");
+
+        vertx.eventBus().send("deblox.deployer.deploy", upgrade, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("error", reply.body().getString("status"));
+
+            vertx.eventBus().send("deblox.deployer.undeploy", jo, new Handler<Message<JsonObject>>() {
+              @Override
+              public void handle(Message<JsonObject> reply) {
+                System.out.println("Response: " + reply.body());
+                assertEquals("ok", reply.body().getString("status"));
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+
   @Test
   public void testUndeployModule() {
     container.logger().info("in testDeployModule()");
@@ -263,6 +432,1046 @@ public class ModuleIntegrationTest extends TestVerticle {
   }
 
 
+  @Test
+  public void testDeployModuleInstances() {
+    container.logger().info("in testDeployModuleInstances()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putNumber("instances", 3)
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+
+        vertx.eventBus().send("deblox.deployer.audit", new JsonObject().putString("action", "audit"), new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            JsonObject module = reply.body().getArray("modules").get(0);
+            assertEquals("io.vertx~mod-auth-mgr~2.0.0-final", module.getString("name"));
+            assertEquals(3, module.getInteger("instances").intValue());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+  @Test
+  public void testDeployModuleBadInstances() {
+    container.logger().info("in testDeployModuleBadInstances()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putString("instances", "lots")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeployModulePlaced() {
+    container.logger().info("in testDeployModulePlaced()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy.place", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        assertNotNull(reply.body().getString("node"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeployModulePlacedNoEligibleNode() {
+    container.logger().info("in testDeployModulePlacedNoEligibleNode()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putArray("nodes", new JsonArray().addString("no-such-node"))
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy.place", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeployModuleTimeout() {
+    container.logger().info("in testDeployModuleTimeout()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject())
+                    .putNumber("timeout", 1);
+
+    // the deploy completes after the requester was told it timed out, so it must be undeployed again
+    vertx.eventBus().registerHandler("deblox.deployer.reports", new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> report) {
+        String detail = report.body().getString("detail");
+        if ("undeploy".equals(report.body().getString("action")) && detail != null && detail.startsWith("Undeployed late deployment")) {
+          assertEquals("ok", report.body().getString("status"));
+          testComplete();
+        }
+      }
+    });
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        assertTrue(reply.body().getString("message").contains("timed out"));
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployModuleRetriedRequestId() {
+    container.logger().info("in testDeployModuleRetriedRequestId()");
+
+    // with xgrade a repeated deploy would restart the module, a retry must not
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject())
+                    .putBoolean("xgrade", true)
+                    .putString("requestId", "retried-deploy-1");
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(final Message<JsonObject> first) {
+        System.out.println("Response: " + first.body());
+        assertEquals("ok", first.body().getString("status"));
+
+        vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> retry) {
+            System.out.println("Response: " + retry.body());
+            assertEquals("ok", retry.body().getString("status"));
+            assertEquals(first.body().getString("message"), retry.body().getString("message"));
+            assertTrue(retry.body().getBoolean("replayed"));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployModuleReadiness() {
+    container.logger().info("in testDeployModuleReadiness()");
+
+    // stands in for the module, which is warming up for the first two polls
+    final int[] polls = {0};
+    vertx.eventBus().registerHandler("deblox.test.readiness", new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        message.reply(new JsonObject().putString("status", ++polls[0] < 3 ? "warming" : "ok"));
+      }
+    });
+
+    JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject())
+                    .putObject("readiness", new JsonObject()
+                        .putString("address", "deblox.test.readiness")
+                        .putNumber("interval", 100));
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        assertEquals(3, polls[0]);
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployModuleNeverReady() {
+    container.logger().info("in testDeployModuleNeverReady()");
+
+    JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject())
+                    .putObject("readiness", new JsonObject()
+                        .putString("address", "deblox.test.nobody")
+                        .putNumber("interval", 100)
+                        .putNumber("timeout", 500));
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+
+        // it was undeployed again, so it isn't known
+        vertx.eventBus().send("deblox.deployer.audit", new JsonObject().putString("action", "audit"), new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            assertEquals(0, reply.body().getArray("modules").size());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployBatch() {
+    container.logger().info("in testDeployBatch()");
+
+    JsonObject jo = new JsonObject()
+                        .putNumber("concurrency", 2)
+                        .putArray("modules", new JsonArray()
+                            .addObject(new JsonObject()
+                                .putString("moduleName", "mod-auth-mgr")
+                                .putString("moduleVersion", "2.0.0-final")
+                                .putString("moduleOwner", "io.vertx")
+                                .putObject("moduleConfig", new JsonObject()))
+                            .addObject(new JsonObject()
+                                .putString("moduleName", "foo")
+                                .putString("moduleVersion", "1.0.0-final")
+                                .putString("moduleOwner", "com.deblox")
+                                .putObject("moduleConfig", new JsonObject()))
+                            .addObject(new JsonObject()
+                                .putString("moduleName", "bar")));
+
+    vertx.eventBus().send("deblox.deployer.deploy.batch", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        assertEquals(1, reply.body().getInteger("deployed").intValue());
+        assertEquals(2, reply.body().getInteger("failed").intValue());
+
+        JsonObject first = reply.body().getArray("results").get(0);
+        assertEquals("ok", first.getString("status"));
+        assertEquals("io.vertx~mod-auth-mgr~2.0.0-final", first.getString("module"));
+        testComplete();
+      }
+    });
+  }
+
+  @Test
+  public void testDeployBatchBadCommand() {
+    container.logger().info("in testDeployBatchBadCommand()");
+    vertx.eventBus().send("deblox.deployer.deploy.batch", new JsonObject().putString("hi", "there"), new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testDesiredState() {
+    container.logger().info("in testDesiredState()");
+
+    final JsonObject desired = new JsonObject()
+                    .putArray("modules", new JsonArray()
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "mod-auth-mgr")
+                            .putString("moduleVersion", "2.0.0-final")
+                            .putString("moduleOwner", "io.vertx")
+                            .putObject("moduleConfig", new JsonObject())));
+
+    vertx.eventBus().send("deblox.deployer.desired", desired, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        assertEquals(1, reply.body().getInteger("actions").intValue());
+
+        // the same state again is nothing to do
+        vertx.eventBus().send("deblox.deployer.desired", desired, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertEquals(0, reply.body().getInteger("actions").intValue());
+            assertEquals(1, reply.body().getInteger("unchanged").intValue());
+
+            // and an empty one undeploys it
+            vertx.eventBus().send("deblox.deployer.desired", new JsonObject().putArray("modules", new JsonArray()), new Handler<Message<JsonObject>>() {
+              @Override
+              public void handle(Message<JsonObject> reply) {
+                System.out.println("Response: " + reply.body());
+                assertEquals("ok", reply.body().getString("status"));
+                assertEquals("undeploy", ((JsonObject) reply.body().getArray("results").get(0)).getString("operation"));
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testReplicaSet() {
+    container.logger().info("in testReplicaSet()");
+
+    final JsonObject set = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject())
+                    .putNumber("replicas", 1);
+
+    vertx.eventBus().send("deblox.deployer.replicas", set, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+        assertEquals(1, reply.body().getInteger("actions").intValue());
+
+        // a single node can't run a second replica
+        vertx.eventBus().send("deblox.deployer.replicas", set.copy().putNumber("replicas", 2), new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("error", reply.body().getString("status"));
+            assertEquals(1, reply.body().getObject("sets").getObject("io.vertx~mod-auth-mgr").getInteger("short").intValue());
+
+            // and none at all undeploys it
+            vertx.eventBus().send("deblox.deployer.replicas", set.copy().putNumber("replicas", 0), new Handler<Message<JsonObject>>() {
+              @Override
+              public void handle(Message<JsonObject> reply) {
+                System.out.println("Response: " + reply.body());
+                assertEquals("ok", reply.body().getString("status"));
+                assertEquals("undeploy", ((JsonObject) reply.body().getArray("results").get(0)).getString("operation"));
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testRollout() {
+    container.logger().info("in testRollout()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+
+        // a new config is an upgrade too
+        JsonObject rollout = jo.copy()
+                    .putObject("moduleConfig", new JsonObject().putNumber("session_timeout", 60000))
+                    .putString("waveSize", "50%")
+                    .putNumber("minAvailable", 0);
+
+        vertx.eventBus().send("deblox.deployer.rollout", rollout, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertEquals("1 of 1 nodes upgraded", reply.body().getString("message"));
+            assertEquals(1, reply.body().getArray("waves").size());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testRolloutCanaryRollback() {
+    container.logger().info("in testRolloutCanaryRollback()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+
+        JsonObject rollout = jo.copy()
+                    .putObject("moduleConfig", new JsonObject().putNumber("session_timeout", 60000))
+                    .putNumber("minAvailable", 0)
+                    .putObject("canary", new JsonObject()
+                        .putString("errorAddress", "test.canary.errors")
+                        .putNumber("bake", 10000));
+
+        // the canary misbehaves as soon as it is being watched
+        final long errorTimer = vertx.setPeriodic(100, new Handler<Long>() {
+          public void handle(Long timerID) {
+            vertx.eventBus().publish("test.canary.errors", new JsonObject().putString("error", "boom"));
+          }
+        });
+
+        vertx.eventBus().send("deblox.deployer.rollout", rollout, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            vertx.cancelTimer(errorTimer);
+            assertEquals("error", reply.body().getString("status"));
+            assertTrue(reply.body().getString("message").endsWith("rolled back 1 of 1 canary nodes"));
+            assertEquals(1, reply.body().getInteger("errors").intValue());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testRolloutCapacityFloor() {
+    container.logger().info("in testRolloutCapacityFloor()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        assertEquals("ok", reply.body().getString("status"));
+
+        // with stop-start upgrading the only node would take the module down entirely
+        JsonObject rollout = jo.copy()
+                    .putObject("moduleConfig", new JsonObject().putNumber("session_timeout", 60000))
+                    .putString("xgradeStrategy", "stop-start")
+                    .putString("minAvailable", "100%");
+
+        vertx.eventBus().send("deblox.deployer.rollout", rollout, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("error", reply.body().getString("status"));
+            assertEquals(0, reply.body().getArray("waves").size());
+            assertEquals(1, reply.body().getArray("skipped").size());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployStack() {
+    container.logger().info("in testDeployStack()");
+
+    // foo doesn't exist, so bar which needs it must not be attempted
+    JsonObject jo = new JsonObject()
+                    .putArray("modules", new JsonArray()
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "bar")
+                            .putString("moduleVersion", "1.0.0-final")
+                            .putString("moduleOwner", "com.deblox")
+                            .putObject("moduleConfig", new JsonObject())
+                            .putArray("dependsOn", new JsonArray().addString("com.deblox~foo")))
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "foo")
+                            .putString("moduleVersion", "1.0.0-final")
+                            .putString("moduleOwner", "com.deblox")
+                            .putObject("moduleConfig", new JsonObject())
+                            .putArray("dependsOn", new JsonArray().addString("io.vertx~mod-auth-mgr")))
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "mod-auth-mgr")
+                            .putString("moduleVersion", "2.0.0-final")
+                            .putString("moduleOwner", "io.vertx")
+                            .putObject("moduleConfig", new JsonObject())));
+
+    vertx.eventBus().send("deblox.deployer.deploy.stack", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        assertEquals("1 of 3 modules deployed", reply.body().getString("message"));
+        assertEquals(1, reply.body().getInteger("skipped").intValue());
+        assertEquals(3, reply.body().getArray("levels").size());
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testDeployStackCycle() {
+    container.logger().info("in testDeployStackCycle()");
+
+    JsonObject jo = new JsonObject()
+                    .putArray("modules", new JsonArray()
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "foo")
+                            .putString("moduleVersion", "1.0.0-final")
+                            .putString("moduleOwner", "com.deblox")
+                            .putObject("moduleConfig", new JsonObject())
+                            .putArray("dependsOn", new JsonArray().addString("com.deblox~bar")))
+                        .addObject(new JsonObject()
+                            .putString("moduleName", "bar")
+                            .putString("moduleVersion", "1.0.0-final")
+                            .putString("moduleOwner", "com.deblox")
+                            .putObject("moduleConfig", new JsonObject())
+                            .putArray("dependsOn", new JsonArray().addString("com.deblox~foo"))));
+
+    vertx.eventBus().send("deblox.deployer.deploy.stack", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        assertTrue(reply.body().getString("message").startsWith("dependency cycle"));
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testClusterAudit() {
+    container.logger().info("in testClusterAudit()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+
+        JsonObject audit = new JsonObject().putString("action", "audit").putNumber("timeout", 2000);
+        vertx.eventBus().send("deblox.deployer.audit.cluster", audit, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertEquals(1, reply.body().getInteger("answered").intValue());
+            assertTrue(reply.body().getBoolean("complete"));
+
+            JsonObject nodes = reply.body().getObject("nodes");
+            JsonObject node = nodes.getObject(nodes.getFieldNames().iterator().next());
+            assertEquals(1, node.getArray("modules").size());
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testMetrics() {
+    container.logger().info("in testMetrics()");
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().send("deblox.deployer.deploy", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("ok", reply.body().getString("status"));
+
+        vertx.eventBus().send("deblox.deployer.metrics", new JsonObject(), new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            JsonObject deploy = reply.body().getObject("operations").getObject("deploy");
+            assertEquals(1, deploy.getInteger("succeeded").intValue());
+            assertEquals(1, deploy.getObject("latency").getInteger("count").intValue());
+            assertNotNull(reply.body().getObject("modules").getObject("io.vertx~mod-auth-mgr"));
+            testComplete();
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testPrefetchModule() {
+    container.logger().info("in testPrefetchModule()");
+
+    JsonObject jo = new JsonObject()
+                    .putArray("modules", new JsonArray()
+                        .addString("io.vertx~mod-auth-mgr~2.0.0-final")
+                        .addString("not-a-module"));
+
+    vertx.eventBus().send("deblox.deployer.prefetch", jo, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        System.out.println("Response: " + reply.body());
+        assertEquals("error", reply.body().getString("status"));
+        assertEquals("1 of 2 modules cached", reply.body().getString("message"));
+        JsonArray results = reply.body().getArray("results");
+        assertFalse("error".equals(((JsonObject) results.get(0)).getString("status")));
+        assertEquals("error", ((JsonObject) results.get(1)).getString("status"));
+        testComplete();
+      }
+    });
+  }
+
+
+  @Test
+  public void testPrefetchRacesRepositories() throws Exception {
+    container.logger().info("in testPrefetchRacesRepositories()");
+
+    // a repository on the file system which has the module
+    File repo = Files.createTempDirectory("deployer-repo").toFile();
+    File zip = new File(repo, "com/deblox/test/racemod/1.0.0/racemod-1.0.0-mod.zip");
+    zip.getParentFile().mkdirs();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("mod.json"));
+      out.write("{}".getBytes("UTF-8"));
+      out.closeEntry();
+    }
+
+    final JsonObject config = new JsonObject()
+                    .putString("address", "deblox.racetest")
+                    .putString("moduleResolution", "race")
+                    .putString("moduleCacheDir", Files.createTempDirectory("deployer-cache").toString())
+                    .putArray("moduleRepositories", new JsonArray()
+                        .addString("maven:http://localhost:18181")
+                        .addString("maven:" + repo.toURI()));
+
+    // and a mirror ahead of it which never answers
+    vertx.createHttpServer().requestHandler(new Handler<HttpServerRequest>() {
+      public void handle(HttpServerRequest request) {
+      }
+    }).listen(18181, "localhost", new Handler<AsyncResult<HttpServer>>() {
+      public void handle(AsyncResult<HttpServer> listening) {
+        assertTrue(listening.succeeded());
+
+        container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+          @Override
+          public void handle(AsyncResult<String> asyncResult) {
+            assertTrue(asyncResult.succeeded());
+
+            final long started = System.currentTimeMillis();
+            JsonObject jo = new JsonObject().putArray("modules", new JsonArray().addString("com.deblox.test~racemod~1.0.0"));
+            vertx.eventBus().send("deblox.racetest.prefetch", jo, new Handler<Message<JsonObject>>() {
+              @Override
+              public void handle(Message<JsonObject> reply) {
+                System.out.println("Response: " + reply.body());
+                assertEquals("ok", reply.body().getString("status"));
+                JsonObject result = reply.body().getArray("results").get(0);
+                assertEquals("fetched", result.getString("status"));
+                assertTrue(result.getString("message").startsWith("file:"));
+                // well within the dead mirror's timeout
+                assertTrue(System.currentTimeMillis() - started < 10000);
+                testComplete();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testJournalRecovery() throws Exception {
+    container.logger().info("in testJournalRecovery()");
+
+    final JsonObject config = new JsonObject()
+                    .putString("address", "deblox.journaltest")
+                    .putString("journalDir", Files.createTempDirectory("deployer-journal").toString())
+                    .putNumber("journalFlushInterval", 10);
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    // a restarted Deployer on the same journal brings the module back
+    vertx.eventBus().registerHandler("deblox.journaltest.reports", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> report) {
+        if ("recover".equals(report.body().getString("action"))) {
+          System.out.println("Report received: " + report.body());
+          assertEquals("ok", report.body().getString("status"));
+          assertEquals(1, report.body().getInteger("deployed").intValue());
+
+          vertx.eventBus().send("deblox.journaltest.audit", new JsonObject().putString("action", "audit"), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Message<JsonObject> reply) {
+              System.out.println("Response: " + reply.body());
+              JsonObject module = reply.body().getArray("modules").get(0);
+              assertEquals("mod-auth-mgr", module.getString("moduleName"));
+              testComplete();
+            }
+          });
+        }
+      }
+    });
+
+    container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        assertTrue(asyncResult.succeeded());
+        final String deployerID = asyncResult.result();
+
+        vertx.eventBus().send("deblox.journaltest.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+
+            // stopping the Deployer takes its modules with it, but not its journal
+            container.undeployModule(deployerID, new AsyncResultHandler<Void>() {
+              @Override
+              public void handle(AsyncResult<Void> undeployed) {
+                assertTrue(undeployed.succeeded());
+                container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+                  @Override
+                  public void handle(AsyncResult<String> asyncResult) {
+                    assertTrue(asyncResult.succeeded());
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testAdmissionTurnsAwayWhenFull() {
+    container.logger().info("in testAdmissionTurnsAwayWhenFull()");
+
+    // one request at a time and none waiting
+    JsonObject config = new JsonObject()
+                    .putString("address", "deblox.admissiontest")
+                    .putNumber("admissionLimit", 1)
+                    .putNumber("admissionQueueSize", 0);
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        assertTrue(asyncResult.succeeded());
+        final boolean[] turnedAway = {false};
+
+        vertx.eventBus().send("deblox.admissiontest.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertTrue(turnedAway[0]);
+
+            // the slot is given back once the deploy is done
+            vertx.eventBus().send("deblox.admissiontest.undeploy", jo, new Handler<Message<JsonObject>>() {
+              @Override
+              public void handle(Message<JsonObject> reply) {
+                System.out.println("Response: " + reply.body());
+                assertEquals("ok", reply.body().getString("status"));
+                testComplete();
+              }
+            });
+          }
+        });
+
+        // while the first one holds the only slot
+        vertx.eventBus().send("deblox.admissiontest.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("error", reply.body().getString("status"));
+            assertTrue(reply.body().getString("message").startsWith("busy, retry in "));
+            assertTrue(reply.body().getLong("retryAfter") >= 0);
+            turnedAway[0] = true;
+          }
+        });
+      }
+    });
+  }
+
+
+  // Installs a module running the Java source verticle `main` where the platform looks for modules
+  private static void installModule(String module, String main, String source) throws Exception {
+    File dir = new File(System.getProperty("vertx.mods", "mods"), module);
+    dir.mkdirs();
+    Files.write(new File(dir, "mod.json").toPath(), ("{\"main\": \"" + main + ".java\"}").getBytes("UTF-8"));
+    Files.write(new File(dir, main + ".java").toPath(), source.getBytes("UTF-8"));
+  }
+
+
+  @Test
+  public void testReportBatches() throws Exception {
+    container.logger().info("in testReportBatches()");
+
+    final String[] modules = {"com.deblox.test~batched-a~1.0.0", "com.deblox.test~batched-b~1.0.0", "io.vertx~mod-auth-mgr~2.0.0-final"};
+    installModule(modules[0], "Idle", "public class Idle extends org.vertx.java.platform.Verticle { }\n");
+    installModule(modules[1], "Idle", "public class Idle extends org.vertx.java.platform.Verticle { }\n");
+
+    // a window long enough that only the size flushes the batch
+    JsonObject config = new JsonObject()
+                    .putString("address", "deblox.batchtest")
+                    .putString("reportMode", "batch")
+                    .putNumber("reportBatchWindow", 60000)
+                    .putNumber("reportBatchSize", modules.length);
+
+    // the first two share a config, which an envelope carries once
+    final JsonObject shared = new JsonObject().putString("someconfig", "someval");
+    final JsonArray specs = new JsonArray();
+    for (String module : modules) {
+      String[] parts = module.split("~");
+      specs.addObject(new JsonObject()
+                          .putString("moduleOwner", parts[0])
+                          .putString("moduleName", parts[1])
+                          .putString("moduleVersion", parts[2])
+                          .putObject("moduleConfig", parts[1].startsWith("batched") ? shared : new JsonObject()));
+    }
+
+    vertx.eventBus().registerHandler("deblox.batchtest.reports", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> report) {
+        System.out.println("Report received: " + report.body());
+        assertEquals("batch", report.body().getString("action"));
+        JsonArray events = report.body().getArray("events");
+        assertEquals(modules.length, events.size());
+        assertEquals(modules.length, report.body().getInteger("count").intValue());
+        assertEquals(2, report.body().getObject("configs").size());
+
+        for (int i = 0; i < modules.length; i++) {
+          JsonObject event = events.get(i);
+          assertEquals("deploy", event.getString("action"));
+          assertEquals("ok", event.getString("status"));
+          JsonObject detail = event.getObject("detail");
+          assertNull(detail.getObject("config"));
+          assertNotNull(report.body().getObject("configs").getObject(detail.getString("configHash")));
+        }
+        testComplete();
+      }
+    });
+
+    container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        assertTrue(asyncResult.succeeded());
+
+        vertx.eventBus().send("deblox.batchtest.deploy.batch", new JsonObject().putArray("modules", specs), new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+            assertEquals(modules.length, reply.body().getInteger("deployed").intValue());
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testResourceLimitEviction() throws Exception {
+    container.logger().info("in testResourceLimitEviction()");
+
+    // a module which starts two threads of its own
+    installModule("com.deblox.test~spinner~1.0.0", "Spinner",
+        "import org.vertx.java.platform.Verticle;\n" +
+        "public class Spinner extends Verticle {\n" +
+        "  public void start() {\n" +
+        "    for (int i = 0; i < 2; i++) {\n" +
+        "      Thread thread = new Thread(new Runnable() {\n" +
+        "        public void run() {\n" +
+        "          try { Thread.sleep(Long.MAX_VALUE); } catch (InterruptedException e) { }\n" +
+        "        }\n" +
+        "      }, \"spinner-\" + i);\n" +
+        "      thread.setDaemon(true);\n" +
+        "      thread.start();\n" +
+        "    }\n" +
+        "  }\n" +
+        "}\n");
+
+    JsonObject config = new JsonObject()
+                    .putString("address", "deblox.resourcetest")
+                    .putNumber("resourceInterval", 100)
+                    .putNumber("resourceThreadLimit", 1)
+                    .putNumber("resourceStrikes", 2)
+                    .putBoolean("resourceEvict", true);
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "spinner")
+                    .putString("moduleVersion", "1.0.0")
+                    .putString("moduleOwner", "com.deblox.test")
+                    .putObject("moduleConfig", new JsonObject());
+
+    vertx.eventBus().registerHandler("deblox.resourcetest.reports", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> report) {
+        String action = report.body().getString("action");
+        if ("resource-limit".equals(action)) {
+          System.out.println("Report received: " + report.body());
+          assertEquals("com.deblox.test~spinner~1.0.0", report.body().getString("module"));
+          assertTrue(report.body().getBoolean("evicted"));
+          JsonObject resources = report.body().getObject("resources");
+          assertTrue(resources.getInteger("threads") >= 2);
+          assertNotNull(resources.getNumber("cpu"));
+          assertTrue(resources.getLong("diskBytes") > 0);
+          assertTrue(resources.getString("overLimit").contains("resourceThreadLimit"));
+
+        } else if ("undeploy".equals(action)) {
+          System.out.println("Report received: " + report.body());
+          assertEquals("ok", report.body().getString("status"));
+
+          // evicted, so nothing is left running
+          vertx.eventBus().send("deblox.resourcetest.audit", new JsonObject().putString("action", "audit"), new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Message<JsonObject> reply) {
+              System.out.println("Response: " + reply.body());
+              assertEquals(0, reply.body().getArray("modules").size());
+              testComplete();
+            }
+          });
+        }
+      }
+    });
+
+    container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        assertTrue(asyncResult.succeeded());
+
+        vertx.eventBus().send("deblox.resourcetest.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+          }
+        });
+      }
+    });
+  }
+
+
+  @Test
+  public void testInventoryAnnouncement() {
+    container.logger().info("in testInventoryAnnouncement()");
+
+    JsonObject config = new JsonObject()
+                    .putString("address", "deblox.announcetest")
+                    .putNumber("announceInterval", 100)
+                    .putNumber("announceJitter", 0);
+
+    final JsonObject jo = new JsonObject()
+                    .putString("moduleName", "mod-auth-mgr")
+                    .putString("moduleVersion", "2.0.0-final")
+                    .putString("moduleOwner", "io.vertx")
+                    .putObject("moduleConfig", new JsonObject());
+
+    // the deploy shows up in a delta, or in a snapshot should one be due
+    vertx.eventBus().registerHandler("deblox.announcetest.inventory", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> announcement) {
+        System.out.println("Announcement received: " + announcement.body());
+        assertEquals("inventory", announcement.body().getString("action"));
+        assertNotNull(announcement.body().getString("node"));
+        assertTrue(announcement.body().getLong("version") > 0);
+
+        JsonArray modules = "delta".equals(announcement.body().getString("type"))
+                            ? announcement.body().getArray("changed") : announcement.body().getArray("modules");
+        for (Object element : modules) {
+          JsonObject module = (JsonObject) element;
+          // an announcement may catch it still DEPLOYING, the next one has it DEPLOYED
+          if ("mod-auth-mgr".equals(module.getString("moduleName")) && "DEPLOYED".equals(module.getString("state"))) {
+            assertEquals("io.vertx", module.getString("moduleOwner"));
+            assertEquals("2.0.0-final", module.getString("moduleVersion"));
+            assertNotNull(module.getString("deploymentID"));
+            testComplete();
+          }
+        }
+      }
+    });
+
+    container.deployModule(System.getProperty("vertx.modulename"), config, new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        assertTrue(asyncResult.succeeded());
+
+        vertx.eventBus().send("deblox.announcetest.deploy", jo, new Handler<Message<JsonObject>>() {
+          @Override
+          public void handle(Message<JsonObject> reply) {
+            System.out.println("Response: " + reply.body());
+            assertEquals("ok", reply.body().getString("status"));
+          }
+        });
+      }
+    });
+  }
+
+
   @Override
   public void start() {
     // Make sure we call initialize() - this sets up the assert stuff so assert functionality works correctly
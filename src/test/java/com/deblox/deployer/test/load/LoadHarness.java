@@ -0,0 +1,239 @@
+package com.deblox.deployer.test.load;
+
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import com.deblox.deployer.LatencyHistogram;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.PlatformLocator;
+import org.vertx.java.platform.PlatformManager;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline load test of the Deployer itself.
+ *
+ * Starts a local cluster of SimulatedDeployer nodes in this JVM, all on the same address, fires a mix of deploy,
+ * undeploy and audit requests at them with a fixed number outstanding, and prints the throughput and latency
+ * percentiles per operation. A share of the deploys and undeploys is published to every node instead of sent.
+ * No module repository is ever touched, so this runs without a network.
+ *
+ * ./gradlew loadTest -Dloadtest.nodes=3 -Dloadtest.operations=20000
+ *
+ * System properties, all optional:
+ *
+ *   loadtest.nodes            Deployer nodes to start, default 3
+ *   loadtest.clustered        cluster the nodes over Hazelcast on loopback, default true. With false a single
+ *                             non clustered node is started
+ *   loadtest.basePort         event bus port of the first node, default 25500
+ *   loadtest.operations       requests to fire, default 10000
+ *   loadtest.concurrency      requests outstanding at any time, default 64
+ *   loadtest.modules          distinct modules the requests pick from, default 200
+ *   loadtest.mix              deploy:undeploy:audit weights, default 45:45:10
+ *   loadtest.publishRatio     share of deploys and undeploys which are published instead of sent, default 0.05
+ *   loadtest.deployLatency    simulated module deploy time in ms, default 20
+ *   loadtest.undeployLatency  simulated module undeploy time in ms, default 5
+ *   loadtest.latencyJitter    random ms added to each simulated latency, default 10
+ *   loadtest.failureRate      probability of a simulated deploy failing, default 0.01
+ */
+public class LoadHarness {
+
+  private static final String ADDRESS = "loadtest";
+
+  private final int nodes = Integer.getInteger("loadtest.nodes", 3);
+  private final boolean clustered = Boolean.parseBoolean(System.getProperty("loadtest.clustered", "true"));
+  private final int basePort = Integer.getInteger("loadtest.basePort", 25500);
+  private final int operations = Integer.getInteger("loadtest.operations", 10000);
+  private final int concurrency = Integer.getInteger("loadtest.concurrency", 64);
+  private final int modules = Integer.getInteger("loadtest.modules", 200);
+  private final double publishRatio = Double.parseDouble(System.getProperty("loadtest.publishRatio", "0.05"));
+  private final int[] mix = parseMix(System.getProperty("loadtest.mix", "45:45:10"));
+
+  private final List<PlatformManager> managers = new ArrayList<>();
+  private final Random random = new Random();
+
+  // latencies are recorded in microseconds
+  private final LatencyHistogram deployLatency = new LatencyHistogram();
+  private final LatencyHistogram undeployLatency = new LatencyHistogram();
+  private final LatencyHistogram auditLatency = new LatencyHistogram();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong reports = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    LoadHarness harness = new LoadHarness();
+    try {
+      harness.startNodes();
+      harness.run();
+    } finally {
+      harness.stopNodes();
+    }
+    System.exit(0);
+  }
+
+  private void startNodes() throws Exception {
+    if (clustered) {
+      System.setProperty("vertx.clusterManagerFactory", "org.vertx.java.spi.cluster.impl.hazelcast.HazelcastClusterManagerFactory");
+    }
+
+    JsonObject config = new JsonObject()
+                            .putString("address", ADDRESS)
+                            .putObject("simulation", new JsonObject()
+                                .putNumber("deployLatency", Long.getLong("loadtest.deployLatency", 20))
+                                .putNumber("undeployLatency", Long.getLong("loadtest.undeployLatency", 5))
+                                .putNumber("latencyJitter", Long.getLong("loadtest.latencyJitter", 10))
+                                .putNumber("failureRate", Double.parseDouble(System.getProperty("loadtest.failureRate", "0.01"))));
+
+    int count = clustered ? nodes : 1;
+    final CountDownLatch started = new CountDownLatch(count);
+    for (int i = 0; i < count; i++) {
+      PlatformManager manager = clustered
+                                ? PlatformLocator.factory.createPlatformManager(basePort + i, "localhost")
+                                : PlatformLocator.factory.createPlatformManager();
+      managers.add(manager);
+
+      manager.deployVerticle(SimulatedDeployer.class.getName(), config, classpath(), 1, null, new Handler<AsyncResult<String>>() {
+        public void handle(AsyncResult<String> asyncResult) {
+          if (asyncResult.failed()) {
+            asyncResult.cause().printStackTrace();
+          }
+          started.countDown();
+        }
+      });
+    }
+    if (!started.await(60, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Deployer nodes did not start within 60s");
+    }
+    System.out.println("Started " + count + " Deployer node(s)");
+  }
+
+  private void run() throws Exception {
+    EventBus eb = managers.get(0).vertx().eventBus();
+
+    eb.registerHandler(ADDRESS + ".reports", new Handler<Message<JsonObject>>() {
+      public void handle(Message<JsonObject> message) {
+        reports.incrementAndGet();
+      }
+    });
+
+    final Semaphore outstanding = new Semaphore(concurrency);
+    final CountDownLatch finished = new CountDownLatch(operations);
+    long start = System.nanoTime();
+
+    for (int i = 0; i < operations; i++) {
+      outstanding.acquire();
+
+      int pick = random.nextInt(mix[0] + mix[1] + mix[2]);
+      final String operation = pick < mix[0] ? "deploy" : pick < mix[0] + mix[1] ? "undeploy" : "audit";
+      final LatencyHistogram histogram = operation.equals("deploy") ? deployLatency
+                                         : operation.equals("undeploy") ? undeployLatency : auditLatency;
+      JsonObject request = operation.equals("audit") ? new JsonObject().putString("action", "audit") : spec();
+
+      if (!operation.equals("audit") && random.nextDouble() < publishRatio) {
+        // fan out to every node, nobody replies to a publish
+        eb.publish(ADDRESS + "." + operation, request);
+        published.incrementAndGet();
+        outstanding.release();
+        finished.countDown();
+        continue;
+      }
+
+      final long sent = System.nanoTime();
+      eb.send(ADDRESS + "." + operation, request, new Handler<Message<JsonObject>>() {
+        public void handle(Message<JsonObject> reply) {
+          histogram.record((System.nanoTime() - sent) / 1000);
+          // already-deployed and no such module are part of the mix, so errors here are not failures of the test
+          if (!"ok".equals(reply.body().getString("status"))) {
+            errors.incrementAndGet();
+          }
+          outstanding.release();
+          finished.countDown();
+        }
+      });
+    }
+
+    if (!finished.await(10, TimeUnit.MINUTES)) {
+      System.out.println("Gave up waiting for " + finished.getCount() + " replies");
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    // give the last reports a moment to arrive
+    Thread.sleep(500);
+
+    System.out.println();
+    System.out.println(String.format("nodes %d, operations %d, concurrency %d, modules %d", managers.size(), operations, concurrency, modules));
+    System.out.println(String.format("elapsed %.2fs, %.0f ops/sec, %d published, %d error replies, %d reports received",
+                                     seconds, operations / seconds, published.get(), errors.get(), reports.get()));
+    System.out.println();
+    System.out.println(String.format("%-10s %8s %10s %10s %10s %10s %10s", "operation", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+    print("deploy", deployLatency);
+    print("undeploy", undeployLatency);
+    print("audit", auditLatency);
+  }
+
+  private void stopNodes() {
+    for (PlatformManager manager : managers) {
+      manager.stop();
+    }
+  }
+
+  private JsonObject spec() {
+    return new JsonObject()
+                .putString("moduleOwner", "com.deblox.loadtest")
+                .putString("moduleName", "module-" + random.nextInt(modules))
+                .putString("moduleVersion", "1.0.0-final")
+                .putObject("moduleConfig", new JsonObject().putString("someconfig", "someval"));
+  }
+
+  private static void print(String operation, LatencyHistogram histogram) {
+    System.out.println(String.format("%-10s %8d %10.2f %10.2f %10.2f %10.2f %10.2f", operation, histogram.count(),
+                                     histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0,
+                                     histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0,
+                                     histogram.percentile(100) / 1000.0));
+  }
+
+  private static int[] parseMix(String mix) {
+    String[] weights = mix.split(":");
+    if (weights.length != 3) {
+      throw new IllegalArgumentException("loadtest.mix must be deploy:undeploy:audit weights, not " + mix);
+    }
+    return new int[] {Integer.parseInt(weights[0]), Integer.parseInt(weights[1]), Integer.parseInt(weights[2])};
+  }
+
+  // The harness' own classpath, which is where the verticles it deploys live
+  private static URL[] classpath() throws Exception {
+    List<URL> urls = new ArrayList<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      urls.add(new File(entry).toURI().toURL());
+    }
+    return urls.toArray(new URL[urls.size()]);
+  }
+
+}
@@ -0,0 +1,36 @@
+package com.deblox.deployer.test.load;
+
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import com.deblox.deployer.Deployer;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A Deployer whose modules are deployed on a SimulatedPlatform, configured by the "simulation" object of its config.
+ */
+public class SimulatedDeployer extends Deployer {
+
+  public void start() {
+    JsonObject simulation = container.config().getObject("simulation", new JsonObject());
+    container = new SimulatedPlatform(vertx, container, simulation).container();
+    super.start();
+  }
+
+}
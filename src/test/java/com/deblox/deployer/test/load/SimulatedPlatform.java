@@ -0,0 +1,146 @@
+package com.deblox.deployer.test.load;
+
+/*
+
+Copyright 2013 Deblox
+by Kegan Holtzhausen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+import org.vertx.java.platform.PlatformManagerException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Wraps a real Container so module deploys and undeploys never touch a repository or start anything.
+ *
+ * Each one completes on a timer after the configured latency plus a random jitter, and fails with the configured
+ * probability. Everything else, config and logger included, is passed through to the real container.
+ *
+ * Simulation config:
+ *
+ *   deployLatency    ms a module deploy takes, default 20
+ *   undeployLatency  ms a module undeploy takes, default 5
+ *   latencyJitter    up to this many ms are added to every latency at random, default 10
+ *   failureRate      probability between 0 and 1 of a deploy failing, default 0
+ */
+public class SimulatedPlatform {
+
+  private final Vertx vertx;
+  private final Container real;
+  private final long deployLatency;
+  private final long undeployLatency;
+  private final long latencyJitter;
+  private final double failureRate;
+  private final Random random = new Random();
+  private final Set<String> deployed = new HashSet<>();
+  private long deploymentIDs = 0;
+
+  public SimulatedPlatform(Vertx vertx, Container real, JsonObject simulation) {
+    this.vertx = vertx;
+    this.real = real;
+    this.deployLatency = simulation.getLong("deployLatency", 20);
+    this.undeployLatency = simulation.getLong("undeployLatency", 5);
+    this.latencyJitter = simulation.getLong("latencyJitter", 10);
+    this.failureRate = simulation.getNumber("failureRate", 0).doubleValue();
+  }
+
+  public Container container() {
+    return (Container) Proxy.newProxyInstance(SimulatedPlatform.class.getClassLoader(), new Class<?>[] {Container.class}, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("deployModule")) {
+          Object last = args[args.length - 1];
+          deploy((String) args[0], last instanceof Handler ? (Handler<AsyncResult<String>>) last : null);
+          return null;
+        }
+        if (method.getName().equals("undeployModule")) {
+          undeploy((String) args[0], args.length == 2 ? (Handler<AsyncResult<Void>>) args[1] : null);
+          return null;
+        }
+        try {
+          return method.invoke(real, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+  }
+
+  private void deploy(final String moduleName, final Handler<AsyncResult<String>> doneHandler) {
+    vertx.setTimer(latency(deployLatency), new Handler<Long>() {
+      public void handle(Long timerID) {
+        if (random.nextDouble() < failureRate) {
+          complete(doneHandler, null, new PlatformManagerException("simulated failure deploying " + moduleName));
+        } else {
+          String deploymentID = "simulated-deployment-" + (++deploymentIDs);
+          deployed.add(deploymentID);
+          complete(doneHandler, deploymentID, null);
+        }
+      }
+    });
+  }
+
+  private void undeploy(final String deploymentID, final Handler<AsyncResult<Void>> doneHandler) {
+    vertx.setTimer(latency(undeployLatency), new Handler<Long>() {
+      public void handle(Long timerID) {
+        if (deployed.remove(deploymentID)) {
+          complete(doneHandler, null, null);
+        } else {
+          complete(doneHandler, null, new PlatformManagerException("There is no deployment with id " + deploymentID));
+        }
+      }
+    });
+  }
+
+  private long latency(long base) {
+    // vert.x timers need at least a millisecond
+    return Math.max(1, base + (latencyJitter > 0 ? (long) (random.nextDouble() * latencyJitter) : 0));
+  }
+
+  private static <T> void complete(Handler<AsyncResult<T>> doneHandler, final T result, final Throwable cause) {
+    if (doneHandler == null) {
+      return;
+    }
+    doneHandler.handle(new AsyncResult<T>() {
+      public T result() {
+        return result;
+      }
+
+      public Throwable cause() {
+        return cause;
+      }
+
+      public boolean succeeded() {
+        return cause == null;
+      }
+
+      public boolean failed() {
+        return cause != null;
+      }
+    });
+  }
+
+}